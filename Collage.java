@@ -1,4 +1,17 @@
 import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  * This class contains methods to create and perform operations on a collage of images.
@@ -6,7 +19,7 @@ import java.awt.Color;
  * @author Ana Paula Centeno
  */ 
 
-public class Collage {
+public class Collage implements AutoCloseable {
 
     // The orginal picture
     private Picture originalPicture;
@@ -25,6 +38,45 @@ public class Collage {
     // A pixel has three components (red, green, and blue) that define the color 
     // of the pixel on the screen.
     private int tileDimension;
+
+    // The filter used to scale pictures into the collage and its tiles
+    private Resampler.Filter filter = Resampler.Filter.NEAREST;
+
+    // The number of threads makeCollage, replaceTiles, resampling and save may
+    // use; 1 keeps them all on the calling thread
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    // The pool that parallel work runs in when parallelism is below the common
+    // pool's, made on first use and remade when parallelism changes
+    private volatile ForkJoinPool ownPool;
+
+    // Collages with fewer tiles than this are made on the calling thread,
+    // where the tiles are too few to pay for the task overhead
+    private int parallelThreshold = 64;
+
+    // The operations queued for each tile, by row * collageDimension + col, fused in queue order;
+    // concurrent so that tiles can be queued and applied from different threads
+    private final Map<Integer, PixelOp> pendingOps = new ConcurrentHashMap<>();
+
+    // The tiles changed since they were last saved to a tiled raster, by
+    // row * collageDimension + col; also the lock for unshownTiles
+    private final BitSet dirtyTiles = new BitSet();
+
+    // The tiles changed since showCollagePicture last drew them
+    private final BitSet unshownTiles = new BitSet();
+
+    // The last tile write queued by replaceTileAsync; later writes, and every
+    // other method that reads or changes the collage, wait for it. Written
+    // under the collage's monitor, read without it, hence volatile
+    private volatile CompletableFuture<Void> lastTileWrite = CompletableFuture.completedFuture(null);
+
+    // THIRDS[r + g + b] is the average (r + g + b) / 3 of the three components
+    private static final int[] THIRDS = new int[3 * 255 + 1];
+    static {
+        for (int sum = 0; sum < THIRDS.length; sum++) {
+            THIRDS[sum] = sum / 3;
+        }
+    }
     
     /*
      * One-argument Constructor
@@ -43,7 +95,7 @@ public class Collage {
         this.tileDimension = 150;
 
         //2 
-        originalPicture = new Picture(filename);
+        originalPicture = PictureCache.shared().get(filename);
 
         //3
         // make collage to be a black height by height pixel picture
@@ -52,7 +104,8 @@ public class Collage {
 
         //4
         //squish original picture into a black height by height pixel collage
-        scale(height, height, originalPicture, collagePicture);
+        scale(originalPicture, collagePicture);
+        markAllDirty();
     }
 
     /*
@@ -66,33 +119,76 @@ public class Collage {
      * @param filename the image filename
      */    
     public Collage (String filename, int td, int cd) {
+        this(filename, td, cd, Picture.Storage.HEAP);
+    }
 
-    // set default values of collageDimension to cd and tileDimension to td
-    this.tileDimension = td;
-    this.collageDimension = cd;
-    
-    // initializes originalPicture with the filename image
-    this.originalPicture = new Picture(filename);
-    
-    // initializes collagePicture as a Picture of tileDimension*collageDimension x tileDimension*collageDimension,
-    // where each pixel is black (see all constructors for the Picture class)
-    this.collagePicture = new Picture(tileDimension * collageDimension, tileDimension * collageDimension);
-    for (int x = 0; x < collagePicture.width(); x++) {
-        for (int y = 0; y < collagePicture.height(); y++) {
-            collagePicture.set(x, y, new Color(0, 0, 0));
-        }
+    /*
+     * Four-arguments Constructor
+     * Same as the three-arguments constructor, with collagePicture kept in the
+     * given storage. With Picture.Storage.OFF_HEAP the collage pixels live
+     * outside the Java heap, so a poster-sized collage needs only a small heap;
+     * release them with close().
+     *
+     * @param filename the image filename
+     * @param td tile dimension
+     * @param cd collage dimension
+     * @param storage where collagePicture keeps its pixels
+     */
+    public Collage (String filename, int td, int cd, Picture.Storage storage) {
+        this(PictureCache.shared().get(filename), td, cd, storage);
     }
-    
-    // update collagePicture to be a scaled version of original (see scaling filter on Week 9 slides)
-    Picture scaledPicture = this.originalPicture.scale(tileDimension * collageDimension, tileDimension * collageDimension);
-    for (int x = 0; x < scaledPicture.width(); x++) {
-        for (int y = 0; y < scaledPicture.height(); y++) {
-            Color c = scaledPicture.get(x, y);
-            this.collagePicture.set(x, y, c);
-        }
+
+    // the four-argument constructor, given the already decoded original
+    private Collage (Picture original, int td, int cd, Picture.Storage storage) {
+
+        // set default values of collageDimension to cd and tileDimension to td
+        this.tileDimension = td;
+        this.collageDimension = cd;
+
+        // initializes originalPicture with the filename image
+        this.originalPicture = original;
+
+        // initializes collagePicture as a Picture of tileDimension*collageDimension x tileDimension*collageDimension,
+        // where each pixel is black (see all constructors for the Picture class)
+        this.collagePicture = new Picture(tileDimension * collageDimension, tileDimension * collageDimension, storage);
+
+        // update collagePicture to be a scaled version of original (see scaling filter on Week 9 slides)
+        scale(originalPicture, collagePicture);
+        markAllDirty();
     }
+
+
+    /*
+     * Asynchronous one-argument Constructor
+     * Decodes filename on executor and builds the collage there, like
+     * Collage(filename), without blocking the caller. Start the next load
+     * before working on this one to overlap their decoding.
+     *
+     * @param filename the image filename
+     * @param executor the executor to decode and scale on
+     * @return a future completed with the collage
+     */
+    public static CompletableFuture<Collage> loadAsync (String filename, Executor executor) {
+        return loadAsync(filename, 150, 4, Picture.Storage.HEAP, executor);
     }
 
+    /*
+     * Asynchronous four-arguments Constructor
+     * Same as Collage(filename, td, cd, storage), but decodes and scales on
+     * executor and returns at once.
+     *
+     * @param filename the image filename
+     * @param td tile dimension
+     * @param cd collage dimension
+     * @param storage where collagePicture keeps its pixels
+     * @param executor the executor to decode and scale on
+     * @return a future completed with the collage
+     */
+    public static CompletableFuture<Collage> loadAsync (String filename, int td, int cd,
+                                                       Picture.Storage storage, Executor executor) {
+        return PictureCache.shared().getAsync(filename, 0, 0, executor)
+                           .thenApplyAsync(original -> new Collage(original, td, cd, storage), executor);
+    }
 
     /*
      * Scales the Picture @source into Picture @target size.
@@ -103,23 +199,20 @@ public class Collage {
      * @param target is the 
      */
     public static void scale (Picture source, Picture target) {
+        Resampler.resample(source, target, Resampler.Filter.NEAREST);
+    }
 
-        int sourceWidth = source.width();
-        int sourceHeight = source.height();
-        int targetWidth = target.width();
-        int targetHeight = target.height();
-    
-        double xFactor = (double)sourceWidth / targetWidth;
-        double yFactor = (double)sourceHeight / targetHeight;
-    
-        for (int y = 0; y < targetHeight; y++) {
-            for (int x = 0; x < targetWidth; x++) {
-                int sourceX = (int) (x * xFactor);
-                int sourceY = (int) (y * yFactor);
-                Color c = source.get(sourceX, sourceY);
-                target.set(x, y, c);
-            }
-        }
+    /*
+     * Scales the Picture @source into Picture @target size with the given
+     * resampling filter. Weight tables are shared between calls with the same
+     * source and target sizes, so scaling many tiles pays for them once.
+     *
+     * @param source is the image to be scaled.
+     * @param target is the image to draw into
+     * @param filter is the resampling filter
+     */
+    public static void scale (Picture source, Picture target, Resampler.Filter filter) {
+        Resampler.resample(source, target, filter);
     }
 
      /*
@@ -140,6 +233,97 @@ public class Collage {
         return tileDimension;
     }
 
+    /*
+     * Returns the filter used by makeCollage and replaceTile to scale pictures
+     *
+     * @return filter
+     */
+    public Resampler.Filter getFilter() {
+        return filter;
+    }
+
+    /*
+     * Sets the filter used by makeCollage and replaceTile to scale pictures.
+     * The default, NEAREST, is the fastest.
+     *
+     * @param filter the resampling filter
+     */
+    public void setFilter(Resampler.Filter filter) {
+        awaitTileWrites();
+        if (filter == null) throw new IllegalArgumentException("filter argument is null");
+        this.filter = filter;
+    }
+
+    /*
+     * Returns the number of threads makeCollage, replaceTiles, the resampling
+     * of tiles and save may use
+     *
+     * @return parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /*
+     * Sets the number of threads makeCollage, replaceTiles, the resampling of
+     * tiles and save may use. With 1, they all run on the calling thread.
+     * The constructors scale the original with NEAREST, which always runs
+     * on the calling thread.
+     *
+     * @param parallelism the number of threads, at least 1
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    // the pool parallel work runs in: the common pool when it has at least
+    // parallelism threads, else this collage's own, reused from call to call
+    private ForkJoinPool pool () {
+        int threads = parallelism;
+        if ( threads >= ForkJoinPool.getCommonPoolParallelism() ) {
+            return ForkJoinPool.commonPool();
+        }
+        ForkJoinPool own = ownPool;
+        if ( own == null || own.getParallelism() != threads ) {
+            synchronized (this) {
+                own = ownPool;
+                if ( own == null || own.getParallelism() != threads ) {
+                    if ( own != null ) {
+                        own.shutdown();   // lets the tasks it is running finish
+                    }
+                    own = new ForkJoinPool(threads);
+                    ownPool = own;
+                }
+            }
+        }
+        return own;
+    }
+
+    // the pool the resampler splits a tile between, or null with parallelism 1
+    private ForkJoinPool resamplePool () {
+        return parallelism <= 1 ? null : pool();
+    }
+
+    /*
+     * Returns the number of tiles below which makeCollage stays on the calling thread
+     *
+     * @return parallelThreshold
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /*
+     * Sets the number of tiles below which makeCollage stays on the calling thread
+     *
+     * @param parallelThreshold the smallest number of tiles worth splitting between threads
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        if (parallelThreshold < 0) throw new IllegalArgumentException("threshold must be nonnegative: " + parallelThreshold);
+        this.parallelThreshold = parallelThreshold;
+    }
+
     /*
      * Returns original instance variable
      *
@@ -157,6 +341,7 @@ public class Collage {
      */
     
     public Picture getCollagePicture() {
+        awaitTileWrites();
         return collagePicture;
     }
 
@@ -171,25 +356,119 @@ public class Collage {
     /*
      * Display the collage image
      * Assumes that collage has been initialized
+     * Once the window is open, only the tiles changed since the last call are redrawn
      */    
     public void showCollagePicture() {
-	    collagePicture.show();
+        awaitTileWrites();
+        BitSet changed;
+        synchronized (dirtyTiles) {
+            changed = (BitSet) unshownTiles.clone();
+            unshownTiles.clear();
+        }
+        if ( changed.cardinality() == collageDimension * collageDimension ) {
+            collagePicture.show();
+            return;
+        }
+        // repaint only the tiles edited since the last call
+        int tileWidth = collagePicture.width() / collageDimension;
+        int tileHeight = collagePicture.height() / collageDimension;
+        for (int tile = changed.nextSetBit(0); tile >= 0; tile = changed.nextSetBit(tile + 1)) {
+            collagePicture.show((tile % collageDimension) * tileWidth, (tile / collageDimension) * tileHeight,
+                                tileWidth, tileHeight);
+        }
     }
 
     /*
      * Updates collagePicture to be a collage of tiles from original Picture.
      * collagePicture will have collageDimension x collageDimension tiles, 
      * where each tile has tileDimension X tileDimension pixels.
+     * Every tile is the same picture, originalPicture scaled to one tile, so
+     * it is scaled once and then replicated with row-wise bulk copies.
      */    
     public void makeCollage () {
+        awaitTileWrites();
+
+        pendingOps.clear();   // every tile is about to be replaced
+        markAllDirty();
+        renderFirstRow();
+        if (parallelism <= 1 || collageDimension * collageDimension < parallelThreshold) {
+            copyTileRows(1, collageDimension);
+            return;
+        }
+
+        // each task copies into its own rows of tiles, and only reads the
+        // first row, so the tasks can share collagePicture without locking
+        pool().invoke(new TileRowTask(1, collageDimension));
+    }
+
+    /*
+     * Same as makeCollage(), but copies one row of tiles per task on executor
+     * and returns once every row is done. The result is identical to makeCollage().
+     *
+     * @param executor runs the tasks
+     */
+    public void makeCollage (Executor executor) {
+        awaitTileWrites();
+        if (executor == null) throw new IllegalArgumentException("executor argument is null");
+
+        pendingOps.clear();   // every tile is about to be replaced
+        markAllDirty();
+        renderFirstRow();
+        CompletableFuture<?>[] rows = new CompletableFuture<?>[collageDimension - 1];
+        for (int i = 1; i < collageDimension; i++) {
+            int row = i;
+            rows[i - 1] = CompletableFuture.runAsync(() -> copyTileRows(row, row + 1), executor);
+        }
+        try {
+            CompletableFuture.allOf(rows).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
 
-        int tileWidth = originalPicture.width() / collageDimension;
-        int tileHeight = originalPicture.height() / collageDimension;
-        for (int i = 0; i < collageDimension; i++) {
-            for (int j = 0; j < collageDimension; j++) {
-                Picture tile = originalPicture.crop(j * tileWidth, i * tileHeight, tileWidth, tileHeight);
-                scale(tile, tilePicture);
-                collagePicture.copy(tilePicture, j * tileDimension, i * tileDimension);
+    /*
+     * Scales originalPicture into tile (0, 0), the only resampling makeCollage
+     * does, then fills the rest of the first row of tiles by doubling the
+     * filled part with each copy
+     */
+    private void renderFirstRow () {
+        Resampler.resample(originalPicture, collagePicture, 0, 0, tileDimension, tileDimension, filter, resamplePool());
+        int width = collagePicture.width();
+        for (int filled = tileDimension; filled < width; filled *= 2) {
+            collagePicture.copy(collagePicture, 0, 0, Math.min(filled, width - filled), tileDimension, filled, 0);
+        }
+    }
+
+    /*
+     * Copies the first row of tiles over tile rows [lo, hi)
+     */
+    private void copyTileRows (int lo, int hi) {
+        int width = collagePicture.width();
+        for (int i = lo; i < hi; i++) {
+            collagePicture.copy(collagePicture, 0, 0, width, tileDimension, 0, i * tileDimension);
+        }
+    }
+
+    /*
+     * Fork-join task filling tile rows [lo, hi), split in halves down to one row
+     */
+    @SuppressWarnings("serial")
+    private class TileRowTask extends RecursiveAction {
+        private final int lo, hi;
+
+        TileRowTask (int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute () {
+            if (hi - lo <= 1) {
+                copyTileRows(lo, hi);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new TileRowTask(lo, mid), new TileRowTask(mid, hi));
             }
         }
     }
@@ -205,36 +484,12 @@ public class Collage {
      */
     public void colorizeTile (String component,  int collageCol, int collageRow) {
 
-    // Extract the tile from the collagePicture
-    int tileX = collageCol * tileDimension;
-    int tileY = collageRow * tileDimension;
-    Picture tile = collagePicture.crop(tileX, tileY, tileDimension, tileDimension);
-    
-    // Loop through each pixel in the tile and apply the color separation algorithm
-    for (int x = 0; x < tileDimension; x++) {
-        for (int y = 0; y < tileDimension; y++) {
-            Color pixel = tile.get(x, y);
-            int red = pixel.getRed();
-            int green = pixel.getGreen();
-            int blue = pixel.getBlue();
-            int gray = (red + green + blue) / 3;
-
-            if (component.equals("red")) {
-                tile.set(x, y, new Color(red, gray, gray));
-            } else if (component.equals("green")) {
-                tile.set(x, y, new Color(gray, green, gray));
-            } else if (component.equals("blue")) {
-                tile.set(x, y, new Color(gray, gray, blue));
-            }
-        }
-    }
-    
-    // Set the pixels of the tile to the new colorized values
-    for (int x = 0; x < tileDimension; x++) {
-        for (int y = 0; y < tileDimension; y++) {
-            collagePicture.set(tileX + x, tileY + y, tile.get(x, y));
+        // Colorize the tile in place: the kept component stays, the other two
+        // become the gray level
+        if ( !component.equals("red") && !component.equals("green") && !component.equals("blue") ) {
+            return;
         }
-    }
+        applyToTile(PixelOp.colorize(component), collageCol, collageRow);
     }
 
     /*
@@ -246,27 +501,394 @@ public class Collage {
      * @param collageRow tile row
      */
     public void replaceTile (String filename,  int collageCol, int collageRow) {
+        awaitTileWrites();
 
-    // Load the image from the file
-    Picture newTile = new Picture(filename);
-    
-    // Calculate the dimensions of a tile in the collage
-    int tileWidth = collagePicture.width() / collageDimension;
-    int tileHeight = collagePicture.height() / collageDimension;
-    
-    // Calculate the pixel coordinates of the top-left corner of the tile to replace
-    int startX = collageCol * tileWidth;
-    int startY = collageRow * tileHeight;
-    
-    // Copy the pixels from the new tile to the appropriate location in the collage
-    for (int x = 0; x < tileWidth; x++) {
-        for (int y = 0; y < tileHeight; y++) {
-            int sourceX = x * newTile.width() / tileWidth;
-            int sourceY = y * newTile.height() / tileHeight;
-            Color color = newTile.get(sourceX, sourceY);
-            collagePicture.set(startX + x, startY + y, color);
+        validateTile(collageCol, collageRow);
+
+        // Calculate the dimensions of a tile in the collage
+        int tileWidth = collagePicture.width() / collageDimension;
+        int tileHeight = collagePicture.height() / collageDimension;
+
+        // Load the image from the file, subsampled down to about the tile size,
+        // or reuse it if an earlier call already decoded it
+        Picture newTile = PictureCache.shared().get(filename, tileWidth, tileHeight);
+
+        writeTile(newTile, collageCol, collageRow);
+    }
+
+    /*
+     * Replaces the tile at collageCol,collageRow with the image from filename,
+     * like replaceTile, but decodes the image on executor and returns at once.
+     * The decodes of successive calls overlap; their writes into the collage
+     * happen one at a time, in the order of the calls, so a later call for
+     * the same tile still wins. A file that cannot be read fails only its
+     * own future.
+     * The writes run on executor, so every other method of the collage that
+     * reads or changes its pixels, dirty tiles or queued operations first
+     * waits for the writes already queued. Calls made in one thread thus
+     * take effect in the order they were made, and never overlap a write.
+     * Those methods must therefore not be called from a task on a
+     * single-threaded executor that a queued write is waiting for.
+     *
+     * @param filename image to replace tile
+     * @param collageCol tile column
+     * @param collageRow tile row
+     * @param executor the executor to decode and scale on
+     * @return a future completed once the tile has been written
+     */
+    public CompletableFuture<Void> replaceTileAsync (String filename, int collageCol, int collageRow,
+                                                    Executor executor) {
+
+        validateTile(collageCol, collageRow);
+        if ( executor == null ) throw new IllegalArgumentException("executor argument is null");
+
+        int tileWidth = collagePicture.width() / collageDimension;
+        int tileHeight = collagePicture.height() / collageDimension;
+        CompletableFuture<Picture> decoded = PictureCache.shared().getAsync(filename, tileWidth, tileHeight, executor);
+
+        synchronized (this) {
+            CompletableFuture<Void> write = lastTileWrite.handle((v, e) -> null)
+                .thenCombineAsync(decoded, (v, newTile) -> {
+                    writeTile(newTile, collageCol, collageRow);
+                    return (Void) null;
+                }, executor);
+            lastTileWrite = write;
+            return write;
+        }
+    }
+
+    // waits for the writes queued by replaceTileAsync; one that failed has
+    // already failed its own future
+    private void awaitTileWrites () {
+        CompletableFuture<Void> pending = lastTileWrite;
+        if ( !pending.isDone() ) {
+            pending.handle((v, e) -> null).join();
+        }
+    }
+
+    /*
+     * One tile of a replaceTiles batch: the image in filename goes to tile
+     * (collageCol, collageRow).
+     */
+    public static final class TileAssignment {
+        private final String filename;
+        private final int collageCol, collageRow;
+
+        public TileAssignment (String filename, int collageCol, int collageRow) {
+            if ( filename == null ) throw new IllegalArgumentException("filename argument is null");
+            this.filename = filename;
+            this.collageCol = collageCol;
+            this.collageRow = collageRow;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public int getCollageCol() {
+            return collageCol;
+        }
+
+        public int getCollageRow() {
+            return collageRow;
+        }
+
+        public String toString() {
+            return filename + " -> (" + collageCol + ", " + collageRow + ")";
+        }
+    }
+
+    /*
+     * Where the time of a replaceTiles batch went. Decode and resample times
+     * are summed over all threads, so with several threads they can exceed
+     * the wall time; write and wait times are those of the calling thread,
+     * which writes the tiles. A wait time close to the wall time means
+     * decoding or resampling is the bottleneck, not writing.
+     */
+    public static final class BatchTimings {
+        private final int tiles;
+        private final long decodeNanos, resampleNanos, writeNanos, waitNanos, wallNanos;
+
+        private BatchTimings (int tiles, long decodeNanos, long resampleNanos, long writeNanos,
+                              long waitNanos, long wallNanos) {
+            this.tiles = tiles;
+            this.decodeNanos = decodeNanos;
+            this.resampleNanos = resampleNanos;
+            this.writeNanos = writeNanos;
+            this.waitNanos = waitNanos;
+            this.wallNanos = wallNanos;
+        }
+
+        public int getTiles() {
+            return tiles;
+        }
+
+        public long getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        public long getResampleNanos() {
+            return resampleNanos;
+        }
+
+        public long getWriteNanos() {
+            return writeNanos;
+        }
+
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        public String toString() {
+            return String.format("%d tiles in %.1f ms: decode %.1f ms, resample %.1f ms, write %.1f ms, waiting %.1f ms",
+                                 tiles, wallNanos / 1e6, decodeNanos / 1e6, resampleNanos / 1e6,
+                                 writeNanos / 1e6, waitNanos / 1e6);
+        }
+    }
+
+    /*
+     * Replaces many tiles at once, as if by calling replaceTile for each
+     * assignment in order. The images are decoded and resampled on up to
+     * getParallelism() threads while the calling thread writes the finished
+     * tiles into the collage in assignment order. At most two tiles per
+     * thread are in flight at a time, so memory stays flat however long the
+     * batch. If a file cannot be read, the tiles before it are written and
+     * the exception is rethrown.
+     *
+     * @param assignments the tiles to replace, in order
+     * @return the time spent in each stage
+     */
+    public BatchTimings replaceTiles (List<TileAssignment> assignments) {
+        awaitTileWrites();
+
+        if ( assignments == null ) throw new IllegalArgumentException("assignments argument is null");
+        for (TileAssignment assignment : assignments) {
+            if ( assignment == null ) throw new IllegalArgumentException("assignment is null");
+            validateTile(assignment.collageCol, assignment.collageRow);
+        }
+
+        long start = System.nanoTime();
+        LongAdder decodeNanos = new LongAdder();
+        LongAdder resampleNanos = new LongAdder();
+        long writeNanos = 0, waitNanos = 0;
+
+        if ( parallelism <= 1 || assignments.size() <= 1 ) {
+            for (TileAssignment assignment : assignments) {
+                Picture tile = decodeAndResample(assignment, decodeNanos, resampleNanos);
+                long t = System.nanoTime();
+                placeTile(tile, assignment);
+                writeNanos += System.nanoTime() - t;
+            }
+            return new BatchTimings(assignments.size(), decodeNanos.sum(), resampleNanos.sum(),
+                                    writeNanos, 0, System.nanoTime() - start);
+        }
+
+        ForkJoinPool pool = pool();
+        ArrayDeque<CompletableFuture<Picture>> inFlight = new ArrayDeque<>();
+        try {
+            int next = 0;
+            for (TileAssignment assignment : assignments) {
+                while ( next < assignments.size() && inFlight.size() < 2 * parallelism ) {
+                    TileAssignment ahead = assignments.get(next++);
+                    inFlight.add(CompletableFuture.supplyAsync(
+                        () -> decodeAndResample(ahead, decodeNanos, resampleNanos), pool));
+                }
+                long t = System.nanoTime();
+                Picture tile = inFlight.remove().join();
+                long u = System.nanoTime();
+                placeTile(tile, assignment);
+                waitNanos += u - t;
+                writeNanos += System.nanoTime() - u;
+            }
+        } catch (CompletionException e) {
+            if ( e.getCause() instanceof RuntimeException ) throw (RuntimeException) e.getCause();
+            throw e;
+        } finally {
+            for (CompletableFuture<Picture> f : inFlight) {
+                f.cancel(false);
+            }
+        }
+        return new BatchTimings(assignments.size(), decodeNanos.sum(), resampleNanos.sum(),
+                                writeNanos, waitNanos, System.nanoTime() - start);
+    }
+
+    // decodes an assignment's image and resamples it to a tile of its own
+    private Picture decodeAndResample (TileAssignment assignment, LongAdder decodeNanos, LongAdder resampleNanos) {
+        int tileWidth = collagePicture.width() / collageDimension;
+        int tileHeight = collagePicture.height() / collageDimension;
+
+        long t = System.nanoTime();
+        Picture newTile = PictureCache.shared().get(assignment.filename, tileWidth, tileHeight);
+        long u = System.nanoTime();
+        decodeNanos.add(u - t);
+
+        Picture tile = new Picture(tileWidth, tileHeight);
+        Resampler.resample(newTile, tile, 0, 0, tileWidth, tileHeight, filter, resamplePool());
+        resampleNanos.add(System.nanoTime() - u);
+        return tile;
+    }
+
+    // copies a resampled tile into its place in the collage
+    private void placeTile (Picture tile, TileAssignment assignment) {
+        pendingOps.remove(assignment.collageRow * collageDimension + assignment.collageCol);
+        markDirty(assignment.collageCol, assignment.collageRow);
+        collagePicture.copy(tile, assignment.collageCol * tile.width(), assignment.collageRow * tile.height());
+    }
+
+    // scales newTile straight into the tile's place in the collage; the
+    // operations queued for the old tile are dropped with it. Package-private
+    // for CollageQueue, which decodes its replacement images itself
+    void writeTile (Picture newTile, int collageCol, int collageRow) {
+        pendingOps.remove(collageRow * collageDimension + collageCol);
+        markDirty(collageCol, collageRow);
+        int tileWidth = collagePicture.width() / collageDimension;
+        int tileHeight = collagePicture.height() / collageDimension;
+        Resampler.resample(newTile, collagePicture, collageCol * tileWidth, collageRow * tileHeight,
+                           tileWidth, tileHeight, filter, resamplePool());
+    }
+
+    /*
+     * Saves collagePicture as a PNG or JPEG file, streaming it to the encoder
+     * so saving never needs a second copy of the collage: PngWriter pulls a
+     * few strips of rows at a time, the JPEG encoder one row of tiles.
+     * Queued tile operations are applied first.
+     *
+     * @param filename the file to create, ending in .png or .jpg
+     */
+    public void save (String filename) {
+        awaitTileWrites();
+        if ( filename == null ) throw new IllegalArgumentException("filename argument is null");
+        flushTileOps();
+        try {
+            if ( filename.toLowerCase().endsWith(".png") ) {
+                PngWriter writer = new PngWriter();
+                writer.setParallelism(parallelism);
+                writer.write(collagePicture, new File(filename));
+            } else {
+                new StreamingImage(collagePicture, collagePicture.height() / collageDimension).write(new File(filename));
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("could not save collage: " + filename, e);
+        }
+    }
+
+    /*
+     * Saves collagePicture in the tiled raster format, one file tile per
+     * collage tile, so a single tile can later be rewritten with saveTile
+     * or read back with TiledRaster.readTile without decoding the rest.
+     * Queued tile operations are applied first.
+     *
+     * @param filename the file to create
+     * @param compressed whether to deflate each tile
+     */
+    public void saveTiled (String filename, boolean compressed) {
+        awaitTileWrites();
+        if ( filename == null ) throw new IllegalArgumentException("filename argument is null");
+        flushTileOps();
+        TiledRaster.save(collagePicture, new File(filename), collagePicture.width() / collageDimension, compressed);
+        clearDirtyTiles();
+    }
+
+    /*
+     * Rewrites tile (collageCol, collageRow) of a raster written by saveTiled,
+     * in place, leaving the other tiles of the file untouched. Operations
+     * queued for the tile are applied first.
+     *
+     * @param raster the open raster
+     * @param collageCol tile column
+     * @param collageRow tile row
+     */
+    public void saveTile (TiledRaster raster, int collageCol, int collageRow) {
+        awaitTileWrites();
+        validateTile(collageCol, collageRow);
+        if ( raster == null ) throw new IllegalArgumentException("raster argument is null");
+        if ( raster.tileSize() != collagePicture.width() / collageDimension )
+            throw new IllegalArgumentException("raster tiles are " + raster.tileSize() + " pixels, collage tiles are "
+                                               + collagePicture.width() / collageDimension);
+        flushTileOps(collageCol, collageRow);
+        raster.writeTile(collagePicture, collageCol, collageRow);
+        synchronized (dirtyTiles) {
+            dirtyTiles.clear(collageRow * collageDimension + collageCol);
+        }
+    }
+
+    /*
+     * Rewrites in place every tile of a raster written by saveTiled that has
+     * changed since it was last saved, and no other, so saving after editing
+     * one tile costs one tile. Queued tile operations are applied first, so
+     * the tiles they change are saved too.
+     *
+     * @param raster the open raster
+     * @return the number of tiles written
+     */
+    public int saveDirtyTiles (TiledRaster raster) {
+        awaitTileWrites();
+        flushTileOps();
+        BitSet changed = getDirtyTiles();
+        for (int tile = changed.nextSetBit(0); tile >= 0; tile = changed.nextSetBit(tile + 1)) {
+            saveTile(raster, tile % collageDimension, tile / collageDimension);
+        }
+        return changed.cardinality();
+    }
+
+    /*
+     * Returns the tiles changed since they were last saved with saveTiled,
+     * saveTile or saveDirtyTiles, or since clearDirtyTiles. Tile (col, row)
+     * is bit row * collageDimension + col. The set is a copy.
+     *
+     * @return the dirty tiles
+     */
+    public BitSet getDirtyTiles () {
+        awaitTileWrites();
+        synchronized (dirtyTiles) {
+            return (BitSet) dirtyTiles.clone();
+        }
+    }
+
+    /*
+     * Returns true if tile (collageCol, collageRow) has changed since it was last saved.
+     *
+     * @param collageCol tile column
+     * @param collageRow tile row
+     * @return true if the tile is dirty
+     */
+    public boolean isTileDirty (int collageCol, int collageRow) {
+        awaitTileWrites();
+        validateTile(collageCol, collageRow);
+        synchronized (dirtyTiles) {
+            return dirtyTiles.get(collageRow * collageDimension + collageCol);
+        }
+    }
+
+    /*
+     * Marks every tile clean, for callers that persist the collage themselves.
+     */
+    public void clearDirtyTiles () {
+        awaitTileWrites();
+        synchronized (dirtyTiles) {
+            dirtyTiles.clear();
+        }
+    }
+
+    private void markDirty (int collageCol, int collageRow) {
+        int tile = collageRow * collageDimension + collageCol;
+        synchronized (dirtyTiles) {
+            dirtyTiles.set(tile);
+            unshownTiles.set(tile);
         }
     }
+
+    private void markAllDirty () {
+        int tiles = collageDimension * collageDimension;
+        synchronized (dirtyTiles) {
+            dirtyTiles.set(0, tiles);
+            unshownTiles.set(0, tiles);
+        }
     }
 
     /*
@@ -277,19 +899,407 @@ public class Collage {
      */
     public void grayscaleTile (int collageCol, int collageRow) {
 
-    // Get the starting x and y position of the tile in collagePicture
-    int startX = collageCol * tileDimension;
-    int startY = collageRow * tileDimension;
-    
-    // Iterate through each pixel in the tile and make it grayscale
-    for (int x = startX; x < startX + tileDimension; x++) {
-        for (int y = startY; y < startY + tileDimension; y++) {
-            Color color = collagePicture.get(x, y);
-            int avg = (color.getRed() + color.getGreen() + color.getBlue()) / 3;
-            Color grayscale = new Color(avg, avg, avg);
-            collagePicture.set(x, y, grayscale);
+        // Make each pixel in the tile grayscale
+        applyToTile(PixelOp.grayscale(), collageCol, collageRow);
+    }
+
+    /*
+     * Blends the image from filename over the tile at (collageCol, collageRow),
+     * scaled to the tile like replaceTile does: opacity 1 replaces the tile,
+     * 0 leaves it as it is. Operations queued for the tile are applied
+     * before the blend.
+     *
+     * @param filename image to blend in
+     * @param collageCol tile column
+     * @param collageRow tile row
+     * @param opacity the weight of the image, from 0 to 1
+     */
+    public void blendTile (String filename, int collageCol, int collageRow, double opacity) {
+        awaitTileWrites();
+
+        validateTile(collageCol, collageRow);
+        if ( !(opacity >= 0 && opacity <= 1) ) {
+            throw new IllegalArgumentException("opacity must be between 0 and 1: " + opacity);
+        }
+
+        int tileWidth = collagePicture.width() / collageDimension;
+        int tileHeight = collagePicture.height() / collageDimension;
+        Picture tile = new Picture(tileWidth, tileHeight);
+        Resampler.resample(PictureCache.shared().get(filename, tileWidth, tileHeight), tile,
+                           0, 0, tileWidth, tileHeight, filter, resamplePool());
+        flushTileOps(collageCol, collageRow);
+
+        int alpha = (int) Math.round(opacity * 256);
+        int[] line = new int[tileWidth];
+        int[] row = { 0 };   // applyToTile visits the rows of the tile in order
+        applyToTile(collageCol, collageRow, (pixels, from, to) -> {
+            tile.getRasterRow(0, row[0]++, tileWidth, line, 0);
+            TileKernels.blend(pixels, from, line, 0, to - from, alpha);
+        });
+    }
+
+    /*
+     * A per-pixel color operation, from one 0x00RRGGBB color to another.
+     * Operations compose with andThen into a single operation, so a chain
+     * of them costs one pass over a tile however long it is.
+     */
+    @FunctionalInterface
+    public interface PixelOp {
+
+        int apply (int rgb);
+
+        /*
+         * Returns the operation that applies this one and then next.
+         */
+        default PixelOp andThen (PixelOp next) {
+            if ( next == null ) throw new IllegalArgumentException("next argument is null");
+            return rgb -> next.apply(apply(rgb));
+        }
+
+        /*
+         * Returns the operation setting each component to the average of the three.
+         */
+        static PixelOp grayscale () {
+            return new RowKernel(rgb -> THIRDS[((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF)] * 0x010101,
+                                 TileKernels::grayscale);
+        }
+
+        /*
+         * Returns the operation keeping component ("red", "green" or "blue")
+         * and setting the other two to the average of the three.
+         */
+        static PixelOp colorize (String component) {
+            int keep;
+            if ( "red".equals(component) ) {
+                keep = 0xFF0000;
+            } else if ( "green".equals(component) ) {
+                keep = 0x00FF00;
+            } else if ( "blue".equals(component) ) {
+                keep = 0x0000FF;
+            } else {
+                throw new IllegalArgumentException("component must be red, green or blue: " + component);
+            }
+            int spread = 0x010101 & ~keep;   // copies gray into the other two components
+            return new RowKernel(rgb -> (rgb & keep) | THIRDS[((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF)] * spread,
+                                 (pixels, from, to) -> TileKernels.colorize(pixels, from, to, keep));
+        }
+
+        /*
+         * Returns the operation setting each component to the NTSC luminance
+         * 0.299 r + 0.587 g + 0.114 b in 16-bit fixed point, exactly as the
+         * packed-pixel intensity(int) computes it.
+         */
+        static PixelOp luma () {
+            return LUMA;
+        }
+
+        /*
+         * Returns the operation keeping component ("red", "green" or "blue")
+         * and zeroing the other two.
+         */
+        static PixelOp channel (String component) {
+            int keep;
+            if ( "red".equals(component) ) {
+                keep = 0xFF0000;
+            } else if ( "green".equals(component) ) {
+                keep = 0x00FF00;
+            } else if ( "blue".equals(component) ) {
+                keep = 0x0000FF;
+            } else {
+                throw new IllegalArgumentException("component must be red, green or blue: " + component);
+            }
+            return rgb -> rgb & keep;
+        }
+
+        /*
+         * Returns the classic sepia tone operation, clamped to 255.
+         */
+        static PixelOp sepia () {
+            return SEPIA;
+        }
+
+        /*
+         * Returns the operation mapping each component v to 255 (v / 255)^(1 / gamma),
+         * rounded; gamma above 1 brightens, below 1 darkens.
+         */
+        static PixelOp gamma (double gamma) {
+            if ( !(gamma > 0) || Double.isInfinite(gamma) ) {
+                throw new IllegalArgumentException("gamma must be positive: " + gamma);
+            }
+            int[] table = new int[256];
+            for (int v = 0; v < 256; v++) {
+                table[v] = (int) Math.round(255 * Math.pow(v / 255.0, 1 / gamma));
+            }
+            return new ChannelTable(table, table, table);
+        }
+
+        /*
+         * Returns the operation stretching each component linearly so that
+         * inBlack maps to outBlack and inWhite to outWhite; components below
+         * inBlack or above inWhite are clipped first.
+         */
+        static PixelOp levels (int inBlack, int inWhite, int outBlack, int outWhite) {
+            if ( inBlack < 0 || inWhite > 255 || inBlack >= inWhite ) {
+                throw new IllegalArgumentException("need 0 <= inBlack < inWhite <= 255: " + inBlack + ", " + inWhite);
+            }
+            if ( outBlack < 0 || outBlack > 255 || outWhite < 0 || outWhite > 255 ) {
+                throw new IllegalArgumentException("output levels must be between 0 and 255: " + outBlack + ", " + outWhite);
+            }
+            int[] table = new int[256];
+            for (int v = 0; v < 256; v++) {
+                int clipped = Math.min(inWhite, Math.max(inBlack, v));
+                table[v] = (int) Math.round(outBlack + (clipped - inBlack) * (double) (outWhite - outBlack) / (inWhite - inBlack));
+            }
+            return new ChannelTable(table, table, table);
+        }
+
+        /*
+         * Returns the operation rounding each component to the nearest of
+         * levels evenly spaced values from 0 to 255.
+         */
+        static PixelOp posterize (int levels) {
+            if ( levels < 2 || levels > 256 ) {
+                throw new IllegalArgumentException("levels must be between 2 and 256: " + levels);
+            }
+            int[] table = new int[256];
+            for (int v = 0; v < 256; v++) {
+                table[v] = (int) Math.round(Math.round(v * (levels - 1) / 255.0) * 255.0 / (levels - 1));
+            }
+            return new ChannelTable(table, table, table);
+        }
+
+        /*
+         * Returns the operation mapping red r to red[r], green g to green[g]
+         * and blue b to blue[b]. The arrays are copied.
+         */
+        static PixelOp table (int[] red, int[] green, int[] blue) {
+            return new ChannelTable(red.clone(), green.clone(), blue.clone());
+        }
+    }
+
+    // Tables of 16-bit fixed-point luma terms: LUMA_R[r] + LUMA_G[g] + LUMA_B[b] >> 16
+    // is intensity(rgb), rounding bias included
+    private static final PixelOp LUMA = new WeightedSum(
+        new double[][] { { 0.299, 0.587, 0.114 } }, new int[] { 19595, 38470, 7471 });
+
+    // The sepia matrix, one row per output component
+    private static final PixelOp SEPIA = new WeightedSum(
+        new double[][] { { 0.393, 0.769, 0.189 }, { 0.349, 0.686, 0.168 }, { 0.272, 0.534, 0.131 } }, null);
+
+    /*
+     * A pixel operation with a loop of its own over whole rows, from
+     * TileKernels, used when the operation is applied alone rather than
+     * as one stage of a fused chain.
+     */
+    private static final class RowKernel implements PixelOp {
+        private final PixelOp pixel;
+        private final RowOperation rows;
+
+        RowKernel (PixelOp pixel, RowOperation rows) {
+            this.pixel = pixel;
+            this.rows = rows;
+        }
+
+        public int apply (int rgb) {
+            return pixel.apply(rgb);
+        }
+    }
+
+    /*
+     * A per-component lookup: three 256-entry tables, stored already shifted
+     * into place so a pixel costs three loads and two ors. Two in a row fold
+     * into one.
+     */
+    private static final class ChannelTable implements PixelOp {
+        private final int[] red = new int[256], green = new int[256], blue = new int[256];
+
+        ChannelTable (int[] red, int[] green, int[] blue) {
+            if ( red == null || green == null || blue == null ) {
+                throw new IllegalArgumentException("table argument is null");
+            }
+            if ( red.length != 256 || green.length != 256 || blue.length != 256 ) {
+                throw new IllegalArgumentException("tables must have 256 entries");
+            }
+            for (int v = 0; v < 256; v++) {
+                if ( ((red[v] | green[v] | blue[v]) & ~0xFF) != 0 ) {
+                    throw new IllegalArgumentException("table entries must be between 0 and 255");
+                }
+                this.red[v] = red[v] << 16;
+                this.green[v] = green[v] << 8;
+                this.blue[v] = blue[v];
+            }
+        }
+
+        public int apply (int rgb) {
+            return red[(rgb >> 16) & 0xFF] | green[(rgb >> 8) & 0xFF] | blue[rgb & 0xFF];
+        }
+
+        public PixelOp andThen (PixelOp next) {
+            if ( !(next instanceof ChannelTable) ) {
+                return PixelOp.super.andThen(next);
+            }
+            ChannelTable that = (ChannelTable) next;
+            int[] r = new int[256], g = new int[256], b = new int[256];
+            for (int v = 0; v < 256; v++) {
+                r[v] = that.red[red[v] >> 16] >> 16;
+                g[v] = that.green[green[v] >> 8] >> 8;
+                b[v] = that.blue[blue[v]];
+            }
+            return new ChannelTable(r, g, b);
+        }
+    }
+
+    /*
+     * Weighted sums of the three components, one per output row, computed as
+     * 3 x 256 partial-sum tables of 16-bit fixed-point terms so a pixel costs
+     * only loads and integer adds. With a single row the sum is gray and
+     * goes to all three components.
+     */
+    private static final class WeightedSum implements PixelOp {
+        private final int[][] terms;      // terms[3 * out + in][v]
+
+        WeightedSum (double[][] matrix, int[] fixedWeights) {
+            terms = new int[3 * matrix.length][256];
+            for (int out = 0; out < matrix.length; out++) {
+                for (int in = 0; in < 3; in++) {
+                    int weight = fixedWeights != null ? fixedWeights[in] : (int) Math.round(matrix[out][in] * 65536);
+                    for (int v = 0; v < 256; v++) {
+                        terms[3 * out + in][v] = weight * v + (in == 0 ? 0x8000 : 0);
+                    }
+                }
+            }
+        }
+
+        public int apply (int rgb) {
+            int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+            if ( terms.length == 3 ) {
+                return ((terms[0][r] + terms[1][g] + terms[2][b]) >> 16) * 0x010101;
+            }
+            int outR = Math.min(255, (terms[0][r] + terms[1][g] + terms[2][b]) >> 16);
+            int outG = Math.min(255, (terms[3][r] + terms[4][g] + terms[5][b]) >> 16);
+            int outB = Math.min(255, (terms[6][r] + terms[7][g] + terms[8][b]) >> 16);
+            return (outR << 16) | (outG << 8) | outB;
+        }
+    }
+
+    /*
+     * Applies op to every pixel of tile (collageCol, collageRow) in one pass.
+     * Operations queued for the tile with queueTileOp are applied first, in
+     * the same pass.
+     *
+     * @param op the operation
+     * @param collageCol tile column
+     * @param collageRow tile row
+     */
+    public void applyToTile (PixelOp op, int collageCol, int collageRow) {
+        awaitTileWrites();
+
+        validateTile(collageCol, collageRow);
+        if ( op == null ) throw new IllegalArgumentException("op argument is null");
+
+        PixelOp queued = pendingOps.remove(collageRow * collageDimension + collageCol);
+        applyFused(queued == null ? op : queued.andThen(op), collageCol, collageRow);
+    }
+
+    /*
+     * Applies op in one pass, through its row kernel if it has one
+     */
+    private void applyFused (PixelOp op, int collageCol, int collageRow) {
+        if ( op instanceof RowKernel ) {
+            applyToTile(collageCol, collageRow, ((RowKernel) op).rows);
+            return;
+        }
+        applyToTile(collageCol, collageRow, (pixels, from, to) -> {
+            for (int i = from; i < to; i++) {
+                pixels[i] = op.apply(pixels[i]);
+            }
+        });
+    }
+
+    /*
+     * Queues op for tile (collageCol, collageRow) without touching its pixels.
+     * All the operations queued for a tile are fused and applied in a single
+     * pass by flushTileOps, or by the next applyToTile, colorizeTile or
+     * grayscaleTile on that tile. Until then the collage does not show them.
+     * blendTile and the save methods apply them first; replaceTile,
+     * replaceTiles and makeCollage drop them along with the tiles they
+     * replace.
+     *
+     * @param op the operation
+     * @param collageCol tile column
+     * @param collageRow tile row
+     */
+    public void queueTileOp (PixelOp op, int collageCol, int collageRow) {
+        awaitTileWrites();
+
+        validateTile(collageCol, collageRow);
+        if ( op == null ) throw new IllegalArgumentException("op argument is null");
+
+        pendingOps.merge(collageRow * collageDimension + collageCol, op, PixelOp::andThen);
+    }
+
+    /*
+     * Applies the queued operations of every tile, one pass per tile.
+     */
+    public void flushTileOps () {
+        awaitTileWrites();
+        for (int tile : pendingOps.keySet()) {
+            flushTileOps(tile % collageDimension, tile / collageDimension);
         }
     }
+
+    /*
+     * Applies the queued operations of tile (collageCol, collageRow), if any
+     */
+    private void flushTileOps (int collageCol, int collageRow) {
+        PixelOp queued = pendingOps.remove(collageRow * collageDimension + collageCol);
+        if ( queued != null ) {
+            applyFused(queued, collageCol, collageRow);
+        }
+    }
+
+    /*
+     * Transforms the pixels pixels[from] to pixels[to - 1] in place
+     */
+    private interface RowOperation {
+        void apply (int[] pixels, int from, int to);
+    }
+
+    /*
+     * Applies op to each row of the tile at (collageCol, collageRow): in place
+     * in the pixel array of collagePicture, or through a row buffer when
+     * collagePicture is off-heap
+     */
+    private void applyToTile (int collageCol, int collageRow, RowOperation op) {
+        markDirty(collageCol, collageRow);
+        int x = collageCol * tileDimension;
+        int y = collageRow * tileDimension;
+        if (collagePicture.hasPixelArray()) {
+            int[] pixels = collagePicture.getPixelArray();
+            int stride = collagePicture.getScanlineStride();
+            int start = collagePicture.getPixelOffset() + y * stride + x;
+            for (int row = 0; row < tileDimension; row++) {
+                op.apply(pixels, start + row * stride, start + row * stride + tileDimension);
+            }
+        } else {
+            int[] line = new int[tileDimension];
+            for (int row = 0; row < tileDimension; row++) {
+                collagePicture.getRasterRow(x, y + row, tileDimension, line, 0);
+                op.apply(line, 0, tileDimension);
+                collagePicture.setRasterRow(x, y + row, tileDimension, line, 0);
+            }
+        }
+    }
+
+    /*
+     * Throws IllegalArgumentException unless (collageCol, collageRow) is a tile
+     * of collagePicture
+     */
+    private void validateTile (int collageCol, int collageRow) {
+        if (collageCol < 0 || collageCol >= collageDimension)
+            throw new IllegalArgumentException("tile column must be between 0 and " + (collageDimension - 1) + ": " + collageCol);
+        if (collageRow < 0 || collageRow >= collageDimension)
+            throw new IllegalArgumentException("tile row must be between 0 and " + (collageDimension - 1) + ": " + collageRow);
     }
 
     /**
@@ -322,6 +1332,32 @@ public class Collage {
         return gray;
     }
 
+    /**
+     * Returns the monochrome luminance of the given packed RGB color, rounded
+     * to the nearest integer between 0 and 255. Uses the same NTSC formula as
+     * {@link #intensity(Color)} with 16-bit fixed-point weights that add up to
+     * exactly 1, so shades of gray map to themselves.
+     *
+     * @param rgb the color to convert, red in bits 16-23, green in 8-15, blue in 0-7
+     * @return the monochrome luminance (between 0 and 255)
+     */
+    private static int intensity(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >>  8) & 0xFF;
+        int b = (rgb >>  0) & 0xFF;
+        return (19595*r + 38470*g + 7471*b + 0x8000) >> 16;
+    }
+
+    /**
+     * Returns a grayscale version of the given packed RGB color.
+     *
+     * @param rgb the color to convert to grayscale
+     * @return a grayscale version of {@code rgb}, packed the same way
+     */
+    private static int toGray(int rgb) {
+        return intensity(rgb) * 0x010101;
+    }
+
     /*
      * Closes the image windows
      */
@@ -333,4 +1369,21 @@ public class Collage {
             collagePicture.closeWindow();
         }
     }
+
+    /*
+     * Closes the image windows and frees the off-heap memory of collagePicture,
+     * if it has any. The collage cannot be used afterwards.
+     */
+    @Override
+    public void close () {
+        awaitTileWrites();
+        closeWindow();
+        if ( collagePicture != null ) {
+            collagePicture.close();
+        }
+        ForkJoinPool own = ownPool;
+        if ( own != null ) {
+            own.shutdown();
+        }
+    }
 }
@@ -0,0 +1,98 @@
+/******************************************************************************
+ *  Compilation:  javac CollageAllocationCheck.java
+ *  Execution:    java CollageAllocationCheck image [repetitions]
+ *  Dependencies: Collage.java Picture.java
+ *
+ *  Checks that the tile operations of Collage allocate nothing per pixel.
+ *
+ ******************************************************************************/
+
+import java.lang.management.ManagementFactory;
+
+/**
+ *  This class measures the heap allocated by the tile operations of
+ *  {@link Collage}, with the per-thread allocation counter of the HotSpot
+ *  {@code com.sun.management.ThreadMXBean}.
+ *  <p>
+ *  Each operation runs on tiles of 150 and of 600 pixels square, after a
+ *  warm-up so the JIT has compiled it. An operation on packed ints may
+ *  allocate a few small objects per call, but nothing per pixel, so the
+ *  bytes per call must not grow with the tile: the check fails if the
+ *  600-pixel tile, with 16 times the pixels, allocates more than
+ *  {@value #SLACK_BYTES} bytes a call more than the 150-pixel one.
+ *  <p>
+ *  The exit status is 1 if an operation allocates per pixel, and 2 if the
+ *  JVM cannot count allocations.
+ */
+public final class CollageAllocationCheck {
+
+    // what a call may allocate on a large tile beyond what it does on a small one
+    private static final long SLACK_BYTES = 256;
+
+    private CollageAllocationCheck() { }
+
+    // one tile operation, on tile (0, 0) of a collage
+    private interface Operation {
+        void apply(Collage collage);
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param args the image to build the collages from, and how many times
+     *             to run each operation (default 200)
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("usage: java CollageAllocationCheck image [repetitions]");
+            System.exit(2);
+        }
+        String image = args[0];
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+            || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            System.out.println("this JVM cannot count the bytes a thread allocates");
+            System.exit(2);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        String[] names = { "grayscaleTile", "colorizeTile", "applyToTile(sepia)" };
+        Operation[] operations = {
+            c -> c.grayscaleTile(0, 0),
+            c -> c.colorizeTile("red", 0, 0),
+            c -> c.applyToTile(Collage.PixelOp.sepia(), 0, 0),
+        };
+        Collage small = new Collage(image, 150, 2);
+        Collage large = new Collage(image, 600, 2);
+
+        boolean failed = false;
+        System.out.println("operation                 bytes/call 150px  bytes/call 600px  bytes/pixel 600px");
+        for (int i = 0; i < operations.length; i++) {
+            long smallBytes = allocated(threads, operations[i], small, repetitions);
+            long largeBytes = allocated(threads, operations[i], large, repetitions);
+            boolean perPixel = largeBytes - smallBytes > SLACK_BYTES;
+            System.out.printf("%-24s  %16d  %16d  %17.3f  %s%n", names[i], smallBytes, largeBytes,
+                              largeBytes / (600.0 * 600.0), perPixel ? "FAIL" : "ok");
+            if (perPixel) failed = true;
+        }
+        small.close();
+        large.close();
+        if (failed) System.exit(1);
+    }
+
+    // the bytes one call of operation allocates, on average over repetitions
+    // calls after as many again to warm up
+    private static long allocated(com.sun.management.ThreadMXBean threads, Operation operation,
+                                  Collage collage, int repetitions) {
+        for (int i = 0; i < repetitions; i++)
+            operation.apply(collage);
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < repetitions; i++)
+            operation.apply(collage);
+        return (threads.getThreadAllocatedBytes(id) - before) / repetitions;
+    }
+}
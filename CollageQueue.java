@@ -0,0 +1,466 @@
+/******************************************************************************
+ *  Compilation:  javac CollageQueue.java
+ *  Dependencies: Collage.java PictureCache.java
+ *
+ *  A single-writer command queue in front of a collage: edits from many
+ *  threads are queued, batched, coalesced and applied by one thread.
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  This class owns a {@link Collage} and edits it from a single writer
+ *  thread. Other threads submit commands ({@link #replaceTile},
+ *  {@link #colorizeTile}, {@link #grayscaleTile}, {@link #makeCollage},
+ *  {@link #save}) and get a {@link CompletableFuture} completed once the
+ *  command has taken effect, or completed exceptionally if it failed.
+ *  <p>
+ *  Commands take effect in the order they were submitted. The writer takes
+ *  all the commands waiting, up to {@value #MAX_BATCH} at a time, and
+ *  coalesces them before touching any pixel:
+ *  <ul>
+ *  <li> the colorizes and grayscales of a tile are fused into one pass
+ *       over it, and those following a grayscale, which leave a gray
+ *       pixel as it is, are dropped;
+ *  <li> a replace discards the earlier edits of its tile in the batch;
+ *  <li> a makeCollage discards every earlier tile edit in the batch.
+ *  </ul>
+ *  The collage ends up exactly as if the commands had run one by one. A
+ *  {@link #save} ends a batch: the commands before it are applied first.
+ *  <p>
+ *  Replacement images are decoded on an executor as soon as they are
+ *  submitted, so the writer only scales them into place. A replace whose
+ *  image cannot be read fails alone and the earlier edits of its tile stand.
+ *  A batch that fails in some unexpected way fails the commands it had not
+ *  finished, and the writer goes on with the next batch.
+ *  <p>
+ *  The collage must not be used directly while a queue owns it.
+ */
+public final class CollageQueue implements AutoCloseable {
+
+    /** The most commands the writer takes and coalesces at once. */
+    public static final int MAX_BATCH = 1024;
+
+    private enum Kind { REPLACE, COLORIZE, GRAYSCALE, MAKE_COLLAGE, SAVE, STOP }
+
+    private static final class Command {
+        final Kind kind;
+        final String argument;                    // filename or component
+        final int tile;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final long submitted = System.nanoTime();
+        CompletableFuture<Picture> decoded;       // replacement image, for REPLACE
+
+        Command(Kind kind, String argument, int tile) {
+            this.kind = kind;
+            this.argument = argument;
+            this.tile = tile;
+        }
+    }
+
+    // what a batch does to one tile: an optional replacement, then one fused pass
+    private static final class TilePlan {
+        Picture replacement;                      // decoded, scaled as it is written
+        Collage.PixelOp op;
+        boolean gray;                             // the tile is gray once the plan has run
+        final List<Command> commands = new ArrayList<>();
+    }
+
+    private final Collage collage;
+    private final Executor executor;
+    private final LinkedBlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+   /**
+     * Creates a queue that owns {@code collage}, decoding replacement images
+     * on the common fork-join pool.
+     *
+     * @param collage the collage
+     * @throws IllegalArgumentException if {@code collage} is {@code null}
+     */
+    public CollageQueue(Collage collage) {
+        this(collage, ForkJoinPool.commonPool());
+    }
+
+   /**
+     * Creates a queue that owns {@code collage}, decoding replacement images on {@code executor}.
+     *
+     * @param collage the collage
+     * @param executor the executor to decode on
+     * @throws IllegalArgumentException if {@code collage} or {@code executor} is {@code null}
+     */
+    public CollageQueue(Collage collage, Executor executor) {
+        if (collage == null) throw new IllegalArgumentException("collage argument is null");
+        if (executor == null) throw new IllegalArgumentException("executor argument is null");
+        this.collage = collage;
+        this.executor = executor;
+        this.writer = new Thread(this::run, "collage-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+   /**
+     * Queues the replacement of a tile, as by {@link Collage#replaceTile}.
+     *
+     * @param filename image to replace tile
+     * @param collageCol tile column
+     * @param collageRow tile row
+     * @return a future completed once the tile has been replaced
+     * @throws IllegalArgumentException if {@code filename} is {@code null} or the tile is outside the collage
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public CompletableFuture<Void> replaceTile(String filename, int collageCol, int collageRow) {
+        if (filename == null) throw new IllegalArgumentException("filename argument is null");
+        Command command = new Command(Kind.REPLACE, filename, tile(collageCol, collageRow));
+        int n = collage.getCollageDimension();
+        int tileWidth = collage.getCollagePicture().width() / n;
+        int tileHeight = collage.getCollagePicture().height() / n;
+        command.decoded = PictureCache.shared().getAsync(filename, tileWidth, tileHeight, executor);
+        return submit(command);
+    }
+
+   /**
+     * Queues the colorizing of a tile, as by {@link Collage#colorizeTile}.
+     *
+     * @param component red, green or blue
+     * @param collageCol tile column
+     * @param collageRow tile row
+     * @return a future completed once the tile has been colorized
+     * @throws IllegalArgumentException if {@code component} is not red, green or blue or the tile is outside the collage
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public CompletableFuture<Void> colorizeTile(String component, int collageCol, int collageRow) {
+        Collage.PixelOp.colorize(component);
+        return submit(new Command(Kind.COLORIZE, component, tile(collageCol, collageRow)));
+    }
+
+   /**
+     * Queues the grayscaling of a tile, as by {@link Collage#grayscaleTile}.
+     *
+     * @param collageCol tile column
+     * @param collageRow tile row
+     * @return a future completed once the tile has been grayscaled
+     * @throws IllegalArgumentException if the tile is outside the collage
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public CompletableFuture<Void> grayscaleTile(int collageCol, int collageRow) {
+        return submit(new Command(Kind.GRAYSCALE, null, tile(collageCol, collageRow)));
+    }
+
+   /**
+     * Queues the remaking of the collage, as by {@link Collage#makeCollage()}.
+     *
+     * @return a future completed once the collage has been remade
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public CompletableFuture<Void> makeCollage() {
+        return submit(new Command(Kind.MAKE_COLLAGE, null, -1));
+    }
+
+   /**
+     * Queues the saving of the collage, as by {@link Collage#save}, once
+     * the commands submitted before have taken effect.
+     *
+     * @param filename the file to create, ending in .png or .jpg
+     * @return a future completed once the file has been written
+     * @throws IllegalArgumentException if {@code filename} is {@code null}
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public CompletableFuture<Void> save(String filename) {
+        if (filename == null) throw new IllegalArgumentException("filename argument is null");
+        return submit(new Command(Kind.SAVE, filename, -1));
+    }
+
+    private int tile(int collageCol, int collageRow) {
+        int n = collage.getCollageDimension();
+        if (collageCol < 0 || collageCol >= n || collageRow < 0 || collageRow >= n)
+            throw new IllegalArgumentException("tile (" + collageCol + ", " + collageRow + ") is outside the "
+                                               + n + "-by-" + n + " collage");
+        return collageRow * n + collageCol;
+    }
+
+    private synchronized CompletableFuture<Void> submit(Command command) {
+        if (closed) throw new IllegalStateException("queue has been closed");
+        submitted.increment();
+        queue.add(command);
+        return command.done;
+    }
+
+   /**
+     * Returns the number of commands waiting for the writer.
+     *
+     * @return the queue depth
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+   /**
+     * Returns the number of commands submitted so far.
+     *
+     * @return the number of commands submitted
+     */
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+   /**
+     * Returns the number of commands that have taken effect so far.
+     *
+     * @return the number of commands completed normally
+     */
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+   /**
+     * Returns the number of commands that have failed so far.
+     *
+     * @return the number of commands completed exceptionally
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+   /**
+     * Returns the number of commands that took effect without a pass of
+     * their own: fused into another edit of the same tile, or discarded by
+     * a later replace or makeCollage.
+     *
+     * @return the number of commands coalesced
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+   /**
+     * Returns the number of batches the writer has applied.
+     *
+     * @return the number of batches
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+   /**
+     * Returns the mean time from submission to completion of the commands
+     * completed so far, normally or not.
+     *
+     * @return the mean latency in nanoseconds, or 0 if none has completed
+     */
+    public long getMeanLatencyNanos() {
+        long n = completed.sum() + failed.sum();
+        return n == 0 ? 0 : latencyNanos.sum() / n;
+    }
+
+   /**
+     * Returns the longest time from submission to completion of a command so far.
+     *
+     * @return the maximum latency in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth %d, %d submitted, %d completed, %d failed, %d coalesced, %d batches, "
+                             + "latency mean %.2f ms max %.2f ms",
+                             getDepth(), getSubmitted(), getCompleted(), getFailed(), getCoalesced(),
+                             getBatches(), getMeanLatencyNanos() / 1e6, getMaxLatencyNanos() / 1e6);
+    }
+
+   /**
+     * Applies the commands already submitted, stops the writer and closes
+     * the collage. Commands submitted afterwards are rejected.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            queue.add(new Command(Kind.STOP, null, -1));
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        collage.close();
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // the writer: takes what is waiting, applies it, repeats until told to stop
+    private void run() {
+        List<Command> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            boolean stop = false;
+            try {
+                stop = apply(batch);
+            }
+            catch (Throwable e) {
+                // whatever went wrong, the commands waiting on this batch hear
+                // of it and the writer lives on for the next one
+                for (Command command : batch) {
+                    if (command.kind == Kind.STOP) stop = true;
+                    else if (!command.done.isDone()) finish(command, e);
+                }
+            }
+            batch.clear();
+            if (stop) return;
+        }
+    }
+
+    // coalesces and applies a batch in order; returns true if it ends with STOP
+    private boolean apply(List<Command> batch) {
+        batches.increment();
+        boolean remake = false;
+        List<Command> remakers = new ArrayList<>();    // completed by the makeCollage
+        Map<Integer, TilePlan> plans = new LinkedHashMap<>();
+        for (Command command : batch) {
+            switch (command.kind) {
+                case MAKE_COLLAGE:
+                    for (TilePlan plan : plans.values())
+                        supersede(plan.commands, remakers);
+                    plans.clear();
+                    if (remake) coalesced.increment();
+                    remake = true;
+                    remakers.add(command);
+                    break;
+                case REPLACE:
+                    Picture image;
+                    try {
+                        image = command.decoded.join();
+                    }
+                    catch (CompletionException e) {
+                        finish(command, e.getCause());
+                        break;
+                    }
+                    catch (RuntimeException e) {
+                        finish(command, e);
+                        break;
+                    }
+                    TilePlan replaced = plans.remove(command.tile);
+                    TilePlan plan = new TilePlan();
+                    if (replaced != null) supersede(replaced.commands, plan.commands);
+                    plan.replacement = image;
+                    plan.commands.add(command);
+                    plans.put(command.tile, plan);
+                    break;
+                case COLORIZE:
+                case GRAYSCALE:
+                    TilePlan edited = plans.computeIfAbsent(command.tile, t -> new TilePlan());
+                    edited.commands.add(command);
+                    if (edited.gray) {
+                        coalesced.increment();
+                    }
+                    else {
+                        Collage.PixelOp op = command.kind == Kind.GRAYSCALE ? Collage.PixelOp.grayscale()
+                                                                             : Collage.PixelOp.colorize(command.argument);
+                        if (edited.op != null) coalesced.increment();
+                        edited.op = edited.op == null ? op : edited.op.andThen(op);
+                        edited.gray = command.kind == Kind.GRAYSCALE;
+                    }
+                    break;
+                case SAVE:
+                case STOP:
+                    applyPlans(remake, remakers, plans);
+                    remake = false;
+                    remakers = new ArrayList<>();
+                    plans.clear();
+                    if (command.kind == Kind.STOP) return true;
+                    try {
+                        collage.save(command.argument);
+                        finish(command, null);
+                    }
+                    catch (RuntimeException e) {
+                        finish(command, e);
+                    }
+                    break;
+            }
+        }
+        applyPlans(remake, remakers, plans);
+        return false;
+    }
+
+    // moves superseded commands to complete along with the command superseding them
+    private void supersede(List<Command> commands, List<Command> into) {
+        coalesced.add(commands.size());
+        into.addAll(commands);
+    }
+
+    private void applyPlans(boolean remake, List<Command> remakers, Map<Integer, TilePlan> plans) {
+        if (remake) {
+            RuntimeException failure = null;
+            try {
+                collage.makeCollage();
+            }
+            catch (RuntimeException e) {
+                failure = e;
+            }
+            for (Command command : remakers)
+                finish(command, failure);
+        }
+        int n = collage.getCollageDimension();
+        for (Map.Entry<Integer, TilePlan> entry : plans.entrySet()) {
+            int col = entry.getKey() % n;
+            int row = entry.getKey() / n;
+            TilePlan plan = entry.getValue();
+            RuntimeException failure = null;
+            try {
+                if (plan.replacement != null) collage.writeTile(plan.replacement, col, row);
+                if (plan.op != null) collage.applyToTile(plan.op, col, row);
+            }
+            catch (RuntimeException e) {
+                failure = e;
+            }
+            for (Command command : plan.commands)
+                finish(command, failure);
+        }
+    }
+
+    private void finish(Command command, Throwable failure) {
+        long latency = System.nanoTime() - command.submitted;
+        latencyNanos.add(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        if (failure == null) {
+            completed.increment();
+            command.done.complete(null);
+        }
+        else {
+            failed.increment();
+            command.done.completeExceptionally(failure);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/******************************************************************************
+ *  Compilation:  javac CollageScript.java
+ *  Dependencies: Collage.java
+ *
+ *  A manifest of collages and tile operations, run as independent jobs
+ *  on a bounded thread pool.
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *  This class parses and runs a collage manifest: a list of collages and the
+ *  operations to perform on each, one command per line, with tokens
+ *  separated by whitespace and {@code #} starting a comment.
+ *  <pre>
+ *  collage   name image [tileDimension collageDimension]
+ *  make      name
+ *  replace   name image col row
+ *  colorize  name red|green|blue col row
+ *  grayscale name col row
+ *  save      name file
+ *  </pre>
+ *  A {@code collage} line declares a collage, built as by the one- or
+ *  three-argument {@link Collage} constructor; the other lines add a step
+ *  to the collage named, and the steps of a collage run in the order given.
+ *  <p>
+ *  Each collage is a job. A job that reads an image another job saves
+ *  depends on it and starts once it has finished; all other jobs are
+ *  independent and run concurrently, a job per thread: each job builds,
+ *  edits, resamples and saves its collage on its own thread and fans out
+ *  no further. If a job fails, the jobs that depend on it are skipped. The
+ *  whole manifest is checked before anything runs, so a typo on line 5000
+ *  does not waste a night.
+ */
+public final class CollageScript {
+
+    // one operation on a collage, from one manifest line
+    private interface Action {
+        void apply(Collage collage);
+    }
+
+    private static final class Step {
+        final int line;
+        final Action action;
+
+        Step(int line, Action action) {
+            this.line = line;
+            this.action = action;
+        }
+    }
+
+    private static final class Job {
+        final String name;
+        final int line;
+        final String image;
+        final int td, cd;
+        final List<Step> steps = new ArrayList<>();
+        final List<String> reads = new ArrayList<>();
+        final List<String> saves = new ArrayList<>();
+        final List<Job> dependencies = new ArrayList<>();
+        CompletableFuture<Void> done;
+        boolean ran;
+
+        Job(String name, int line, String image, int td, int cd) {
+            this.name = name;
+            this.line = line;
+            this.image = image;
+            this.td = td;
+            this.cd = cd;
+            reads.add(image);
+        }
+    }
+
+    private static final List<String> COMMANDS = Arrays.asList("make", "replace", "colorize", "grayscale", "save");
+
+    private final Map<String, Job> jobs;
+
+    private CollageScript(Map<String, Job> jobs) {
+        this.jobs = jobs;
+    }
+
+   /**
+     * Parses a manifest and works out which jobs depend on which.
+     *
+     * @param lines the lines of the manifest
+     * @return the script
+     * @throws IllegalArgumentException if {@code lines} is {@code null}
+     * @throws IllegalArgumentException if a line is not a valid command, naming the line
+     * @throws IllegalArgumentException if two jobs save the same file, or jobs depend on each other in a cycle
+     */
+    public static CollageScript parse(List<String> lines) {
+        if (lines == null) throw new IllegalArgumentException("lines argument is null");
+        Map<String, Job> jobs = new LinkedHashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String text = lines.get(i);
+            int comment = text.indexOf('#');
+            if (comment >= 0) text = text.substring(0, comment);
+            text = text.trim();
+            if (text.isEmpty()) continue;
+            try {
+                parseLine(text.split("\\s+"), i + 1, jobs);
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        link(jobs);
+        return new CollageScript(jobs);
+    }
+
+    private static void parseLine(String[] tokens, int line, Map<String, Job> jobs) {
+        String command = tokens[0];
+        if (tokens.length < 2) throw new IllegalArgumentException(command + " needs a collage name");
+        String name = tokens[1];
+
+        if (command.equals("collage")) {
+            if (tokens.length != 3 && tokens.length != 5)
+                throw new IllegalArgumentException("usage: collage name image [tileDimension collageDimension]");
+            if (jobs.containsKey(name))
+                throw new IllegalArgumentException("collage " + name + " already declared on line " + jobs.get(name).line);
+            int td = tokens.length == 5 ? positive(tokens[3], "tile dimension") : 150;
+            int cd = tokens.length == 5 ? positive(tokens[4], "collage dimension") : 4;
+            jobs.put(name, new Job(name, line, tokens[2], td, cd));
+            return;
+        }
+
+        if (!COMMANDS.contains(command)) throw new IllegalArgumentException("unknown command: " + command);
+        Job job = jobs.get(name);
+        if (job == null) throw new IllegalArgumentException("collage " + name + " has not been declared");
+
+        switch (command) {
+            case "make": {
+                arguments(tokens, 2, "make name");
+                job.steps.add(new Step(line, Collage::makeCollage));
+                break;
+            }
+            case "replace": {
+                arguments(tokens, 5, "replace name image col row");
+                String image = tokens[2];
+                int col = tile(tokens[3], job.cd, "column");
+                int row = tile(tokens[4], job.cd, "row");
+                job.reads.add(image);
+                job.steps.add(new Step(line, c -> c.replaceTile(image, col, row)));
+                break;
+            }
+            case "colorize": {
+                arguments(tokens, 5, "colorize name red|green|blue col row");
+                String component = tokens[2];
+                Collage.PixelOp.colorize(component);
+                int col = tile(tokens[3], job.cd, "column");
+                int row = tile(tokens[4], job.cd, "row");
+                job.steps.add(new Step(line, c -> c.colorizeTile(component, col, row)));
+                break;
+            }
+            case "grayscale": {
+                arguments(tokens, 4, "grayscale name col row");
+                int col = tile(tokens[2], job.cd, "column");
+                int row = tile(tokens[3], job.cd, "row");
+                job.steps.add(new Step(line, c -> c.grayscaleTile(col, row)));
+                break;
+            }
+            case "save": {
+                arguments(tokens, 3, "save name file");
+                String file = tokens[2];
+                String lower = file.toLowerCase();
+                if (!lower.endsWith(".png") && !lower.endsWith(".jpg"))
+                    throw new IllegalArgumentException("file must end in .png or .jpg: " + file);
+                job.saves.add(file);
+                job.steps.add(new Step(line, c -> c.save(file)));
+                break;
+            }
+            default:
+                throw new AssertionError(command);
+        }
+    }
+
+    private static void arguments(String[] tokens, int count, String usage) {
+        if (tokens.length != count) throw new IllegalArgumentException("usage: " + usage);
+    }
+
+    private static int positive(String token, String what) {
+        int value = number(token, what);
+        if (value <= 0) throw new IllegalArgumentException(what + " must be positive: " + token);
+        return value;
+    }
+
+    private static int tile(String token, int cd, String what) {
+        int value = number(token, what);
+        if (value < 0 || value >= cd)
+            throw new IllegalArgumentException("tile " + what + " must be between 0 and " + (cd - 1) + ": " + token);
+        return value;
+    }
+
+    private static int number(String token, String what) {
+        try {
+            return Integer.parseInt(token);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(what + " is not an integer: " + token);
+        }
+    }
+
+    // makes each job depend on the jobs saving the images it reads, and rejects cycles
+    private static void link(Map<String, Job> jobs) {
+        Map<String, Job> savers = new HashMap<>();
+        for (Job job : jobs.values()) {
+            for (String file : job.saves) {
+                Job other = savers.put(path(file), job);
+                if (other != null && other != job)
+                    throw new IllegalArgumentException("collages " + other.name + " and " + job.name + " both save " + file);
+            }
+        }
+        for (Job job : jobs.values()) {
+            for (String file : job.reads) {
+                Job saver = savers.get(path(file));
+                if (saver != null && saver != job && !job.dependencies.contains(saver)) job.dependencies.add(saver);
+            }
+        }
+        Map<Job, Boolean> visiting = new HashMap<>();    // true while on the path, false once done
+        for (Job job : jobs.values())
+            checkCycle(job, visiting);
+    }
+
+    private static void checkCycle(Job job, Map<Job, Boolean> visiting) {
+        Boolean state = visiting.get(job);
+        if (state != null) {
+            if (state) throw new IllegalArgumentException("collage " + job.name + " depends on itself through the images it reads");
+            return;
+        }
+        visiting.put(job, true);
+        for (Job dependency : job.dependencies)
+            checkCycle(dependency, visiting);
+        visiting.put(job, false);
+    }
+
+    private static String path(String file) {
+        return new File(file).getAbsoluteFile().toPath().normalize().toString();
+    }
+
+   /**
+     * Returns the number of jobs, one per collage declared.
+     *
+     * @return the number of jobs
+     */
+    public int size() {
+        return jobs.size();
+    }
+
+   /**
+     * Runs every job on a pool of {@code threads} threads and prints one line
+     * per job as it finishes, with the time to build the collage and to run
+     * its steps, then a summary line.
+     *
+     * @param threads the number of jobs run at a time
+     * @param out where to print the timings
+     * @return the number of jobs that failed or were skipped
+     * @throws IllegalArgumentException if {@code threads} is not positive or {@code out} is {@code null}
+     */
+    public int run(int threads, PrintStream out) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be positive: " + threads);
+        if (out == null) throw new IllegalArgumentException("out argument is null");
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int failed = 0, skipped = 0;
+        try {
+            for (Job job : jobs.values())
+                schedule(job, pool, out);
+            for (Job job : jobs.values()) {
+                try {
+                    job.done.join();
+                }
+                catch (CompletionException e) {
+                    if (job.ran) failed++;
+                    else skipped++;
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+        out.printf("%d jobs, %d failed, %d skipped in %.1f ms on %d threads%n",
+                   jobs.size(), failed, skipped, (System.nanoTime() - start) / 1e6, threads);
+        return failed + skipped;
+    }
+
+    // starts job once its dependencies have finished; they are scheduled first
+    private CompletableFuture<Void> schedule(Job job, ExecutorService pool, PrintStream out) {
+        if (job.done != null) return job.done;
+        CompletableFuture<?>[] dependencies = new CompletableFuture<?>[job.dependencies.size()];
+        for (int i = 0; i < dependencies.length; i++)
+            dependencies[i] = schedule(job.dependencies.get(i), pool, out);
+        job.done = CompletableFuture.allOf(dependencies)
+            .whenComplete((v, e) -> {
+                if (e != null) out.printf("%-24s skipped: a collage it reads from failed%n", job.name);
+            })
+            .thenRunAsync(() -> runJob(job, out), pool);
+        return job.done;
+    }
+
+    private static void runJob(Job job, PrintStream out) {
+        job.ran = true;
+        long start = System.nanoTime();
+        int line = job.line;
+        Collage collage = null;
+        try {
+            collage = new Collage(job.image, job.td, job.cd);
+            collage.setParallelism(1);        // the pool runs one job per thread, and the job
+                                              // keeps its resampling and saving on it too
+            long built = System.nanoTime();
+            for (Step step : job.steps) {
+                line = step.line;
+                step.action.apply(collage);
+            }
+            long end = System.nanoTime();
+            out.printf("%-24s %5d steps  build %8.1f ms  steps %8.1f ms  total %8.1f ms%n", job.name,
+                       job.steps.size(), (built - start) / 1e6, (end - built) / 1e6, (end - start) / 1e6);
+        }
+        catch (RuntimeException e) {
+            out.printf("%-24s failed on line %d after %.1f ms: %s%n", job.name, line, (System.nanoTime() - start) / 1e6, e);
+            throw e;
+        }
+        finally {
+            if (collage != null) collage.close();
+        }
+    }
+}
@@ -0,0 +1,579 @@
+/******************************************************************************
+ *  Compilation:  javac ConcurrentCollage.java
+ *  Dependencies: Collage.java PictureCache.java TiledRaster.java PngWriter.java StreamingImage.java
+ *
+ *  A thread-safe collage whose tiles can be edited by many threads at once.
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *  This class wraps a {@link Collage} so that several threads can edit it
+ *  at once. Tiles are disjoint regions of the collage, so edits to different
+ *  tiles run in parallel, each holding the lock of its tile's stripe (one
+ *  lock per tile, up to 256 stripes, then tiles share them). Edits to the
+ *  same tile run one at a time, so no tile is ever seen half-edited by
+ *  {@link #copyTile}.
+ *  <p>
+ *  Whole-collage operations ({@link #makeCollage}, tiled saving, showing)
+ *  take an exclusive lock that waits for the
+ *  tile edits in progress and holds off new ones, so they see the collage
+ *  at a single point between edits. Tile edits take that lock shared.
+ *  <p>
+ *  {@link #replaceTile} decodes its image before taking any lock, so a slow
+ *  decode never holds up other edits of the tile or of the collage.
+ *  <p>
+ *  {@link #snapshot()} captures the collage as it is, in time proportional
+ *  to the number of tiles, and lets edits go on while the snapshot is read,
+ *  saved or shown. Tiles are copied on write: the first edit of a tile after
+ *  a snapshot copies the tile for the snapshots that still need it, and
+ *  further edits before the next snapshot copy nothing. A snapshot reads
+ *  the tiles nobody has edited straight from the live collage.
+ *  {@link #save} and {@link #copyCollagePicture} go through a snapshot.
+ *  <p>
+ *  Edits made to the wrapped collage directly, or through the picture
+ *  returned by its {@code getCollagePicture()}, bypass the locks.
+ */
+public final class ConcurrentCollage implements AutoCloseable {
+
+    private static final int MAX_STRIPES = 256;
+
+    private final Collage collage;
+    private final ReentrantReadWriteLock whole = new ReentrantReadWriteLock();
+    private final ReentrantLock[] stripes;
+
+    // per tile, under its stripe: the number of edits so far, and the epoch it
+    // was last copied for the snapshots at; a tile whose preserved epoch is
+    // below the current one must be copied before it is edited
+    private final long[] versions;
+    private final long[] preserved;
+
+    // the number of snapshots taken; changes only under the exclusive lock
+    private long epoch;
+
+    // the snapshots that may still read tiles, guarded by itself
+    private final List<WeakReference<Snapshot>> snapshots = new ArrayList<>();
+
+   /**
+     * Creates a thread-safe collage, as by {@link Collage#Collage(String, int, int, Picture.Storage)}.
+     *
+     * @param filename the image filename
+     * @param td tile dimension
+     * @param cd collage dimension
+     * @param storage where the collage keeps its pixels
+     */
+    public ConcurrentCollage(String filename, int td, int cd, Picture.Storage storage) {
+        this(new Collage(filename, td, cd, storage));
+    }
+
+   /**
+     * Wraps {@code collage}, which should no longer be used directly.
+     *
+     * @param collage the collage
+     * @throws IllegalArgumentException if {@code collage} is {@code null}
+     */
+    public ConcurrentCollage(Collage collage) {
+        if (collage == null) throw new IllegalArgumentException("collage argument is null");
+        this.collage = collage;
+        int tiles = collage.getCollageDimension() * collage.getCollageDimension();
+        stripes = new ReentrantLock[Math.min(tiles, MAX_STRIPES)];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new ReentrantLock();
+        versions = new long[tiles];
+        preserved = new long[tiles];
+
+        // detach the pixels from any picture still sharing them now, rather
+        // than during the first edit, when other threads could be reading
+        Picture picture = collage.getCollagePicture();
+        if (picture.hasPixelArray()) picture.getPixelArray();
+    }
+
+    /**
+     * Returns the collage dimension.
+     *
+     * @return the number of tiles across and down
+     */
+    public int getCollageDimension() {
+        return collage.getCollageDimension();
+    }
+
+    /**
+     * Returns the tile dimension.
+     *
+     * @return the width and height of a tile, in pixels
+     */
+    public int getTileDimension() {
+        return collage.getTileDimension();
+    }
+
+    // runs edit holding the whole-collage lock shared and the tile's stripe
+    private void editTile(int collageCol, int collageRow, Runnable edit) {
+        int n = collage.getCollageDimension();
+        if (collageCol < 0 || collageCol >= n || collageRow < 0 || collageRow >= n)
+            throw new IllegalArgumentException("tile (" + collageCol + ", " + collageRow + ") is outside the "
+                                               + n + "-by-" + n + " collage");
+        int tile = collageRow * n + collageCol;
+        ReentrantLock stripe = stripes[tile % stripes.length];
+        whole.readLock().lock();
+        try {
+            stripe.lock();
+            try {
+                preserve(tile);
+                edit.run();
+                versions[tile]++;
+            }
+            finally {
+                stripe.unlock();
+            }
+        }
+        finally {
+            whole.readLock().unlock();
+        }
+    }
+
+    // runs op, which may change every tile, holding the whole-collage lock exclusively
+    private void editCollage(Runnable op) {
+        wholeCollage(() -> {
+            for (int tile = 0; tile < versions.length; tile++) {
+                ReentrantLock stripe = stripes[tile % stripes.length];
+                stripe.lock();
+                try {
+                    preserve(tile);
+                    versions[tile]++;
+                }
+                finally {
+                    stripe.unlock();
+                }
+            }
+            op.run();
+        });
+    }
+
+    // copies tile for the live snapshots taken since it was last copied; caller holds its stripe
+    private void preserve(int tile) {
+        if (preserved[tile] == epoch) return;
+        List<Snapshot> needing = new ArrayList<>();
+        synchronized (snapshots) {
+            for (Iterator<WeakReference<Snapshot>> it = snapshots.iterator(); it.hasNext(); ) {
+                Snapshot snapshot = it.next().get();
+                if (snapshot == null || snapshot.closed) it.remove();
+                else if (snapshot.epoch > preserved[tile] && snapshot.tiles[tile] == null) needing.add(snapshot);
+            }
+        }
+        if (!needing.isEmpty()) {
+            int[] copy = readTile(tile);
+            for (Snapshot snapshot : needing)
+                snapshot.tiles[tile] = copy;
+        }
+        preserved[tile] = epoch;
+    }
+
+    // the pixels of tile, row by row; caller holds its stripe or the exclusive lock
+    private int[] readTile(int tile) {
+        int n = collage.getCollageDimension();
+        int size = collage.getCollagePicture().width() / n;
+        int x = (tile % n) * size;
+        int y = (tile / n) * size;
+        int[] pixels = new int[size * size];
+        for (int row = 0; row < size; row++)
+            collage.getCollagePicture().getRasterRow(x, y + row, size, pixels, row * size);
+        return pixels;
+    }
+
+   /**
+     * Returns the number of edits made to a tile so far. A whole-collage
+     * edit, like {@link #makeCollage}, counts as an edit of every tile.
+     *
+     * @param collageCol tile column
+     * @param collageRow tile row
+     * @return the version of the tile
+     */
+    public long getTileVersion(int collageCol, int collageRow) {
+        long[] version = new long[1];
+        readTile(collageCol, collageRow, tile -> version[0] = versions[tile]);
+        return version[0];
+    }
+
+    private interface TileReader {
+        void read(int tile);
+    }
+
+    // runs reader holding the tile's stripe only, never the whole-collage lock
+    private void readTile(int collageCol, int collageRow, TileReader reader) {
+        int n = collage.getCollageDimension();
+        if (collageCol < 0 || collageCol >= n || collageRow < 0 || collageRow >= n)
+            throw new IllegalArgumentException("tile (" + collageCol + ", " + collageRow + ") is outside the "
+                                               + n + "-by-" + n + " collage");
+        int tile = collageRow * n + collageCol;
+        ReentrantLock stripe = stripes[tile % stripes.length];
+        stripe.lock();
+        try {
+            reader.read(tile);
+        }
+        finally {
+            stripe.unlock();
+        }
+    }
+
+   /**
+     * Takes a snapshot of the collage as it is between edits. Costs time
+     * proportional to the number of tiles, not of pixels. Close the snapshot
+     * when done so edits stop copying tiles for it; one that is dropped
+     * without closing is forgotten once garbage collected.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        Snapshot[] snapshot = new Snapshot[1];
+        wholeCollage(() -> {
+            snapshot[0] = new Snapshot(++epoch);
+            synchronized (snapshots) {
+                // forget the closed ones here too, or a reader that takes
+                // snapshots while nobody edits would grow the list forever
+                snapshots.removeIf(reference -> {
+                    Snapshot taken = reference.get();
+                    return taken == null || taken.closed;
+                });
+                snapshots.add(new WeakReference<>(snapshot[0]));
+            }
+        });
+        return snapshot[0];
+    }
+
+    /**
+     *  An immutable view of the collage at the time {@link #snapshot()} was
+     *  called. Reading it never waits for more than one tile edit, and edits
+     *  never wait for it beyond the copy of one row of pixels. It may be read
+     *  by several threads at once.
+     */
+    public final class Snapshot implements AutoCloseable {
+        private final long epoch;
+        private final int width, height;
+        private final int[][] tiles;          // the tiles edited since, copied as they were
+        private volatile boolean closed;
+
+        private Snapshot(long epoch) {
+            this.epoch = epoch;
+            this.width = collage.getCollagePicture().width();
+            this.height = collage.getCollagePicture().height();
+            this.tiles = new int[versions.length][];
+        }
+
+        /**
+         * Returns the epoch of this snapshot: 1 for the first taken, 2 for the second, and so on.
+         *
+         * @return the epoch
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * Returns the width of the collage.
+         *
+         * @return the width in pixels
+         */
+        public int width() {
+            return width;
+        }
+
+        /**
+         * Returns the height of the collage.
+         *
+         * @return the height in pixels
+         */
+        public int height() {
+            return height;
+        }
+
+        /**
+         * Writes {@code w} pixels of row {@code row} of the snapshot, from
+         * column {@code col}, to {@code rgbArray} from {@code offset} on,
+         * as 0x00RRGGBB ints. This is a {@link StreamingImage.RowSource}.
+         *
+         * @param col the first column
+         * @param row the row, counted from the top
+         * @param w the number of pixels
+         * @param rgbArray the destination array
+         * @param offset the index in {@code rgbArray} of the first pixel
+         * @throws IllegalStateException if this snapshot has been closed
+         * @throws IllegalArgumentException if the pixels are not inside the collage
+         */
+        public void getRow(int col, int row, int w, int[] rgbArray, int offset) {
+            if (closed) throw new IllegalStateException("snapshot has been closed");
+            if (col < 0 || row < 0 || w < 0 || col + w > width() || row >= height())
+                throw new IllegalArgumentException(w + " pixels at (" + col + ", " + row + ") are outside the collage");
+            int n = collage.getCollageDimension();
+            int size = width() / n;
+            int tileRow = row / size;
+            int y = row % size;
+            for (int x = col; x < col + w; ) {
+                int tileCol = x / size;
+                int from = x % size;
+                int count = Math.min(size - from, col + w - x);
+                int at = offset + (x - col);
+                readTile(tileCol, tileRow, tile -> {
+                    // close() may have dropped the copy since the check above,
+                    // and the live tile may be newer than the snapshot
+                    if (closed) throw new IllegalStateException("snapshot has been closed");
+                    if (tiles[tile] != null) System.arraycopy(tiles[tile], y * size + from, rgbArray, at, count);
+                    else collage.getCollagePicture().getRasterRow(tileCol * size + from, row, count, rgbArray, at);
+                });
+                x += count;
+            }
+        }
+
+        /**
+         * Returns the snapshot as a new picture.
+         *
+         * @return the picture
+         */
+        public Picture toPicture() {
+            Picture picture = new Picture(width(), height());
+            int[] line = new int[width()];
+            for (int row = 0; row < height(); row++) {
+                getRow(0, row, width(), line, 0);
+                picture.setRasterRow(0, row, width(), line, 0);
+            }
+            return picture;
+        }
+
+        /**
+         * Saves the snapshot as a PNG or JPEG file, streaming its rows to the
+         * encoder, while edits of the collage go on.
+         *
+         * @param filename the file to create, ending in .png or .jpg
+         * @throws IllegalArgumentException if the file cannot be written
+         */
+        public void save(String filename) {
+            if (filename == null) throw new IllegalArgumentException("filename argument is null");
+            try {
+                if (filename.toLowerCase().endsWith(".png")) {
+                    try (OutputStream out = new FileOutputStream(filename)) {
+                        new PngWriter().write(width(), height(), this::getRow, out);
+                    }
+                }
+                else {
+                    new StreamingImage(width(), height(), getTileDimension(), this::getRow).write(new File(filename));
+                }
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException("could not save snapshot: " + filename, e);
+            }
+        }
+
+        /**
+         * Shows the snapshot in a window of its own.
+         */
+        public void show() {
+            toPicture().show();
+        }
+
+        /**
+         * Releases the tiles copied for this snapshot. It cannot be read
+         * afterwards: a read still in progress throws when it reaches a tile
+         * this has released.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            // under each stripe, so a reader holding it sees the copy or closed
+            for (int i = 0; i < tiles.length; i++) {
+                ReentrantLock stripe = stripes[i % stripes.length];
+                stripe.lock();
+                try {
+                    tiles[i] = null;
+                }
+                finally {
+                    stripe.unlock();
+                }
+            }
+        }
+    }
+
+    // runs op holding the whole-collage lock exclusively
+    private void wholeCollage(Runnable op) {
+        whole.writeLock().lock();
+        try {
+            op.run();
+        }
+        finally {
+            whole.writeLock().unlock();
+        }
+    }
+
+   /**
+     * Colorizes a tile, as by {@link Collage#colorizeTile}.
+     *
+     * @param component either red, green or blue
+     * @param collageCol tile column
+     * @param collageRow tile row
+     */
+    public void colorizeTile(String component, int collageCol, int collageRow) {
+        editTile(collageCol, collageRow, () -> collage.colorizeTile(component, collageCol, collageRow));
+    }
+
+   /**
+     * Grayscales a tile, as by {@link Collage#grayscaleTile}.
+     *
+     * @param collageCol tile column
+     * @param collageRow tile row
+     */
+    public void grayscaleTile(int collageCol, int collageRow) {
+        editTile(collageCol, collageRow, () -> collage.grayscaleTile(collageCol, collageRow));
+    }
+
+   /**
+     * Applies an operation to a tile, as by {@link Collage#applyToTile}.
+     *
+     * @param op the operation
+     * @param collageCol tile column
+     * @param collageRow tile row
+     */
+    public void applyToTile(Collage.PixelOp op, int collageCol, int collageRow) {
+        editTile(collageCol, collageRow, () -> collage.applyToTile(op, collageCol, collageRow));
+    }
+
+   /**
+     * Replaces a tile, as by {@link Collage#replaceTile}. The image is
+     * decoded, through the shared {@link PictureCache}, before any lock is
+     * taken, and the decoded picture is what the tile is scaled from, so the
+     * decode never runs under the locks even if the cache drops it.
+     *
+     * @param filename image to replace tile
+     * @param collageCol tile column
+     * @param collageRow tile row
+     */
+    public void replaceTile(String filename, int collageCol, int collageRow) {
+        int n = collage.getCollageDimension();
+        int tileWidth = collage.getCollagePicture().width() / n;
+        int tileHeight = collage.getCollagePicture().height() / n;
+        Picture decoded = PictureCache.shared().get(filename, tileWidth, tileHeight);
+        editTile(collageCol, collageRow, () -> collage.writeTile(decoded, collageCol, collageRow));
+    }
+
+   /**
+     * Blends an image over a tile, as by {@link Collage#blendTile}.
+     *
+     * @param filename image to blend in
+     * @param collageCol tile column
+     * @param collageRow tile row
+     * @param opacity the weight of the image, from 0 to 1
+     */
+    public void blendTile(String filename, int collageCol, int collageRow, double opacity) {
+        editTile(collageCol, collageRow, () -> collage.blendTile(filename, collageCol, collageRow, opacity));
+    }
+
+   /**
+     * Returns a copy of a tile, taken between edits of that tile. Copying is
+     * not an edit: the tile's version stays the same and no snapshot copy
+     * is made for it.
+     *
+     * @param collageCol tile column
+     * @param collageRow tile row
+     * @return the tile
+     */
+    public Picture copyTile(int collageCol, int collageRow) {
+        int size = collage.getCollagePicture().width() / collage.getCollageDimension();
+        Picture tile = new Picture(size, size);
+        // shared, so a whole-collage operation is never seen half done
+        whole.readLock().lock();
+        try {
+            readTile(collageCol, collageRow, index ->
+                tile.copy(collage.getCollagePicture(), collageCol * size, collageRow * size, size, size, 0, 0));
+        }
+        finally {
+            whole.readLock().unlock();
+        }
+        return tile;
+    }
+
+   /**
+     * Returns a copy of the whole collage, taken between edits, through a
+     * snapshot, so edits go on while it is copied.
+     *
+     * @return the collage picture
+     */
+    public Picture copyCollagePicture() {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.toPicture();
+        }
+    }
+
+   /**
+     * Remakes the collage, as by {@link Collage#makeCollage()}, with no tile edit in progress.
+     */
+    public void makeCollage() {
+        editCollage(collage::makeCollage);
+    }
+
+   /**
+     * Saves the collage as it is now as a PNG or JPEG file, through a
+     * snapshot, so edits go on while it is encoded.
+     *
+     * @param filename the file to create, ending in .png or .jpg
+     */
+    public void save(String filename) {
+        try (Snapshot snapshot = snapshot()) {
+            snapshot.save(filename);
+        }
+    }
+
+   /**
+     * Saves the collage in the tiled raster format, as by {@link Collage#saveTiled}, with no tile edit in progress.
+     *
+     * @param filename the file to create
+     * @param compressed whether to deflate each tile
+     */
+    public void saveTiled(String filename, boolean compressed) {
+        wholeCollage(() -> collage.saveTiled(filename, compressed));
+    }
+
+   /**
+     * Rewrites the changed tiles of a tiled raster, as by {@link Collage#saveDirtyTiles}, with no tile edit in progress.
+     *
+     * @param raster the open raster
+     * @return the number of tiles written
+     */
+    public int saveDirtyTiles(TiledRaster raster) {
+        int[] written = new int[1];
+        wholeCollage(() -> written[0] = collage.saveDirtyTiles(raster));
+        return written[0];
+    }
+
+   /**
+     * Returns the tiles changed since they were last saved, as by {@link Collage#getDirtyTiles}.
+     *
+     * @return the dirty tiles
+     */
+    public BitSet getDirtyTiles() {
+        return collage.getDirtyTiles();
+    }
+
+   /**
+     * Shows the collage, redrawing the tiles changed since the last call, with no tile edit in progress.
+     */
+    public void showCollagePicture() {
+        wholeCollage(collage::showCollagePicture);
+    }
+
+   /**
+     * Closes the collage, as by {@link Collage#close}, once the edits in
+     * progress have finished. Open snapshots keep working.
+     */
+    @Override
+    public void close() {
+        editCollage(collage::close);
+    }
+}
@@ -0,0 +1,219 @@
+/******************************************************************************
+ *  Compilation:  javac ConcurrentCollageStress.java
+ *  Execution:    java ConcurrentCollageStress [seconds] [maxThreads]
+ *  Dependencies: ConcurrentCollage.java Collage.java Picture.java
+ *
+ *  Stress test and throughput benchmark for the striped tile locks of
+ *  ConcurrentCollage.
+ *
+ *  % java ConcurrentCollageStress 2 8
+ *  threads   striped ops/s  speedup   global ops/s  speedup  torn
+ *        1          112489     1.00          64239     1.00     0
+ *        2          178538     1.59          71246     1.11     0
+ *        4          219471     1.95          65498     1.02     0
+ *        8          204570     1.82          61729     0.96     0
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *  This class hammers a {@link ConcurrentCollage} with many threads editing
+ *  random tiles, and checks that no tile is ever seen half edited.
+ *  <p>
+ *  Every image used is a single color, and every edit (replace, grayscale,
+ *  colorize, makeCollage) maps a single-color tile to a single-color tile,
+ *  so a tile holding two colors was caught mid-edit: it is <em>torn</em>.
+ *  The workers copy tiles with {@link ConcurrentCollage#copyTile} and now
+ *  and then the whole collage with {@link ConcurrentCollage#copyCollagePicture},
+ *  and count the torn tiles they see.
+ *  <p>
+ *  Each thread count runs twice: once with the striped locks, once with
+ *  every edit serialized on one global lock around a plain {@link Collage},
+ *  the way callers had to before. The speedups are against one thread.
+ *  The exit status is 1 if any tile was torn.
+ */
+public final class ConcurrentCollageStress {
+
+    private static final int TILE = 32;
+    private static final int TILES = 12;
+    private static final String[] COMPONENTS = { "red", "green", "blue" };
+
+    private ConcurrentCollageStress() { }
+
+    // one kind of collage under test, edited the same way by every worker
+    private interface Target {
+        void replaceTile(String filename, int col, int row);
+        void grayscaleTile(int col, int row);
+        void colorizeTile(String component, int col, int row);
+        void makeCollage();
+        Picture copyTile(int col, int row);
+        Picture copyCollagePicture();
+    }
+
+    // the edits made under the striped locks
+    private static Target striped(ConcurrentCollage collage) {
+        return new Target() {
+            public void replaceTile(String filename, int col, int row) { collage.replaceTile(filename, col, row); }
+            public void grayscaleTile(int col, int row)                 { collage.grayscaleTile(col, row); }
+            public void colorizeTile(String component, int col, int row) { collage.colorizeTile(component, col, row); }
+            public void makeCollage()                                   { collage.makeCollage(); }
+            public Picture copyTile(int col, int row)                   { return collage.copyTile(col, row); }
+            public Picture copyCollagePicture()                         { return collage.copyCollagePicture(); }
+        };
+    }
+
+    // the same edits, each holding one lock around the whole collage
+    private static Target global(Collage collage) {
+        return new Target() {
+            public synchronized void replaceTile(String filename, int col, int row) { collage.replaceTile(filename, col, row); }
+            public synchronized void grayscaleTile(int col, int row)                 { collage.grayscaleTile(col, row); }
+            public synchronized void colorizeTile(String component, int col, int row) { collage.colorizeTile(component, col, row); }
+            public synchronized void makeCollage()                                   { collage.makeCollage(); }
+            public synchronized Picture copyTile(int col, int row) {
+                return new Picture(collage.getCollagePicture().crop(col * TILE, row * TILE, TILE, TILE));
+            }
+            public synchronized Picture copyCollagePicture() {
+                return new Picture(collage.getCollagePicture());
+            }
+        };
+    }
+
+    /**
+     * Runs the stress test.
+     *
+     * @param args the seconds each run lasts (default 2) and the most
+     *             threads to try (default twice the number of processors)
+     * @throws IOException if the test images cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 2 * Runtime.getRuntime().availableProcessors();
+
+        File dir = Files.createTempDirectory("collage-stress").toFile();
+        String[] images = new String[4];
+        long torn = 0;
+        try {
+            for (int i = 0; i < images.length; i++)
+                images[i] = solidImage(dir, i);
+
+            // warm up the JIT on both targets before timing anything
+            long[] tornCount = new long[1];
+            try (ConcurrentCollage collage = new ConcurrentCollage(images[0], TILE, TILES, Picture.Storage.HEAP)) {
+                run(striped(collage), images, maxThreads, seconds, tornCount);
+            }
+            try (Collage collage = new Collage(images[0], TILE, TILES)) {
+                run(global(collage), images, maxThreads, seconds, tornCount);
+            }
+            torn += tornCount[0];
+
+            System.out.println("threads   striped ops/s  speedup   global ops/s  speedup  torn");
+            double stripedBase = 0, globalBase = 0;
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                tornCount[0] = 0;
+                double striped, global;
+                try (ConcurrentCollage collage = new ConcurrentCollage(images[0], TILE, TILES, Picture.Storage.HEAP)) {
+                    striped = run(striped(collage), images, threads, seconds, tornCount);
+                }
+                try (Collage collage = new Collage(images[0], TILE, TILES)) {
+                    global = run(global(collage), images, threads, seconds, tornCount);
+                }
+                if (threads == 1) {
+                    stripedBase = striped;
+                    globalBase = global;
+                }
+                torn += tornCount[0];
+                System.out.printf("%7d  %14.0f  %7.2f  %13.0f  %7.2f  %4d%n", threads,
+                                  striped, striped / stripedBase, global, global / globalBase, tornCount[0]);
+            }
+        }
+        finally {
+            for (String image : images)
+                if (image != null) new File(image).delete();
+            dir.delete();
+        }
+        if (torn > 0) {
+            System.out.println(torn + " torn tiles");
+            System.exit(1);
+        }
+    }
+
+    // writes a picture of one color to a file in dir and returns its name
+    private static String solidImage(File dir, int i) {
+        int rgb = (i * 60) << 16 | ((i * 97) % 256) << 8 | (200 - i * 40);
+        Picture picture = new Picture(3 * TILE, 3 * TILE);
+        for (int y = 0; y < picture.height(); y++)
+            for (int x = 0; x < picture.width(); x++)
+                picture.setRGB(x, y, rgb);
+        String name = new File(dir, "solid" + i + ".png").getPath();
+        picture.save(name);
+        return name;
+    }
+
+    // runs threads workers on target for the given time; returns edits per second
+    private static double run(Target target, String[] images, int threads, double seconds, long[] torn) {
+        target.makeCollage();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1e9);
+        List<Future<long[]>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+            workers.add(pool.submit(() -> work(target, images, end)));
+        long ops = 0;
+        try {
+            for (Future<long[]> worker : workers) {
+                long[] counts = worker.get();
+                ops += counts[0];
+                torn[0] += counts[1];
+            }
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("worker failed", e);
+        }
+        finally {
+            pool.shutdown();
+        }
+        return ops / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // edits and checks random tiles until end; returns { edits, torn tiles seen }
+    private static long[] work(Target target, String[] images, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long ops = 0, torn = 0;
+        while (System.nanoTime() < end) {
+            int col = random.nextInt(TILES);
+            int row = random.nextInt(TILES);
+            int choice = random.nextInt(1000);
+            if      (choice < 250) target.replaceTile(images[random.nextInt(images.length)], col, row);
+            else if (choice < 500) target.grayscaleTile(col, row);
+            else if (choice < 750) target.colorizeTile(COMPONENTS[random.nextInt(3)], col, row);
+            else if (choice < 998) torn += torn(target.copyTile(col, row), 0, 0);
+            else if (choice < 999) target.makeCollage();
+            else {
+                Picture whole = target.copyCollagePicture();
+                for (int j = 0; j < TILES; j++)
+                    for (int i = 0; i < TILES; i++)
+                        torn += torn(whole, i * TILE, j * TILE);
+            }
+            ops++;
+        }
+        return new long[] { ops, torn };
+    }
+
+    // 1 if the tile at (x, y) of picture holds more than one color, else 0
+    private static int torn(Picture picture, int x, int y) {
+        int first = picture.getRGB(x, y);
+        for (int j = 0; j < TILE; j++)
+            for (int i = 0; i < TILE; i++)
+                if (picture.getRGB(x + i, y + j) != first) return 1;
+        return 0;
+    }
+}
@@ -1,13 +1,30 @@
 /*
  * This class is used to test the Collage class methods.
+ *
+ * Run with no arguments it asks which method to test. Run with a manifest
+ * (see CollageScript), or - to read one from standard input, and optionally
+ * a number of threads, it runs the manifest without asking anything:
+ *
+ *     java Driver nightly.txt 8
+ *     java Driver - < nightly.txt
  * 
  * @author Ana Paula Centeno
  */ 
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
 public class Driver {
         
     public static void main (String[] args) {
 
+        if ( args.length > 0 ) {
+            System.exit(executeScript(args));
+        }
+
         Collage collage = null;
         String[] methods = {"one-argument constructor", "three-argument constructor", "showOriginalPicture", 
         "showCollagePicture", "makeCollage", "replaceTile", "colorizeTile", "grayscaleTile"};
@@ -74,6 +91,49 @@ public class Driver {
         }
     }
 
+    // runs the manifest args[0] on args[1] threads; returns the exit status
+    private static int executeScript (String[] args) {
+
+        if ( args.length > 2 ) {
+            System.err.println("usage: java Driver [manifest|-] [threads]");
+            return 2;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if ( args.length == 2 ) {
+            try {
+                threads = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                threads = 0;
+            }
+            if ( threads < 1 ) {
+                System.err.println("Aborting, the number of threads must be a positive integer: " + args[1]);
+                return 2;
+            }
+        }
+
+        List<String> lines;
+        if ( args[0].equals("-") ) {
+            lines = Arrays.asList(StdIn.readAllLines());
+        } else {
+            try {
+                lines = Files.readAllLines(Paths.get(args[0]));
+            } catch (IOException e) {
+                System.err.println("Aborting, could not read " + args[0] + ": " + e.getMessage());
+                return 2;
+            }
+        }
+
+        CollageScript script;
+        try {
+            script = CollageScript.parse(lines);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Aborting, " + args[0] + " " + e.getMessage());
+            return 2;
+        }
+        return script.run(threads, System.out) == 0 ? 0 : 1;
+    }
+
     private static void executeGrayscaleTile (Collage c) {
 
         System.out.print("\n\nIn which column is the tile would you like to gray? Enter a number => ");
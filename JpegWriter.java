@@ -0,0 +1,314 @@
+/******************************************************************************
+ *  Compilation:  javac JpegWriter.java
+ *  Dependencies: Picture.java StreamingImage.java
+ *
+ *  A JPEG encoder with configurable quality, progressive mode, Huffman table
+ *  optimization and chroma subsampling, reusing pooled ImageIO writers.
+ *
+ ******************************************************************************/
+
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.FileCacheImageOutputStream;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.w3c.dom.Node;
+
+/**
+ *  This class writes pictures as JPEG files with explicit encoding options,
+ *  to trade file size against encoding time per job. The defaults (quality
+ *  0.75, baseline, standard Huffman tables, 4:2:0 subsampling) are those of
+ *  {@code ImageIO.write}; {@link #fast()}, {@link #balanced()} and
+ *  {@link #small()} are presets along that trade-off.
+ *  <p>
+ *  Looking up a JPEG writer through the ImageIO service registry costs more
+ *  than encoding a small tile, so this class keeps a pool of writers, shared
+ *  by all instances, and reuses them across saves. A {@code JpegWriter} may
+ *  be used by several threads at once as long as none changes its options.
+ *  <p>
+ *  Files are written straight to disk. When writing to an
+ *  {@link OutputStream}, ImageIO needs a seekable buffer in front of it:
+ *  in memory by default, or in a temporary file with {@link #setUseCache(boolean)}.
+ */
+public final class JpegWriter {
+
+    /**
+     *  How the two chroma channels are subsampled relative to luma.
+     */
+    public enum Subsampling {
+        /** full chroma resolution */
+        S444(1, 1),
+        /** half horizontal chroma resolution */
+        S422(2, 1),
+        /** half horizontal and vertical chroma resolution */
+        S420(2, 2);
+
+        private final int h, v;
+
+        Subsampling(int h, int v) {
+            this.h = h;
+            this.v = v;
+        }
+    }
+
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    private static final ConcurrentLinkedQueue<ImageWriter> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private float quality = 0.75f;
+    private boolean progressive;
+    private boolean optimizeHuffman;
+    private Subsampling subsampling = Subsampling.S420;
+    private boolean useCache;
+
+   /**
+     * Returns options that favor encoding speed: quality 0.7, baseline, 4:2:0.
+     *
+     * @return a new writer with the fast preset
+     */
+    public static JpegWriter fast() {
+        JpegWriter writer = new JpegWriter();
+        writer.setQuality(0.7f);
+        return writer;
+    }
+
+   /**
+     * Returns options that balance size and speed: quality 0.85, optimized
+     * Huffman tables, 4:2:0.
+     *
+     * @return a new writer with the balanced preset
+     */
+    public static JpegWriter balanced() {
+        JpegWriter writer = new JpegWriter();
+        writer.setQuality(0.85f);
+        writer.setOptimizeHuffman(true);
+        return writer;
+    }
+
+   /**
+     * Returns options that favor small files at a given quality: quality 0.85,
+     * progressive with optimized Huffman tables, 4:2:0.
+     *
+     * @return a new writer with the small preset
+     */
+    public static JpegWriter small() {
+        JpegWriter writer = balanced();
+        writer.setProgressive(true);
+        return writer;
+    }
+
+   /**
+     * Returns the compression quality.
+     *
+     * @return the quality, from 0 (smallest) to 1 (best)
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+   /**
+     * Sets the compression quality.
+     *
+     * @param quality the quality, from 0 (smallest) to 1 (best)
+     * @throws IllegalArgumentException unless {@code quality} is between 0 and 1
+     */
+    public void setQuality(float quality) {
+        if (!(quality >= 0 && quality <= 1)) throw new IllegalArgumentException("quality must be between 0 and 1: " + quality);
+        this.quality = quality;
+    }
+
+   /**
+     * Returns true if files are written in progressive mode.
+     *
+     * @return {@code true} if progressive
+     */
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+   /**
+     * Sets whether files are written in progressive mode, which makes them
+     * a little smaller and slower to encode. Progressive mode always uses
+     * optimized Huffman tables.
+     *
+     * @param progressive {@code true} for progressive, {@code false} for baseline
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+   /**
+     * Returns true if Huffman tables are computed for each image.
+     *
+     * @return {@code true} if Huffman tables are optimized
+     */
+    public boolean isOptimizeHuffman() {
+        return optimizeHuffman;
+    }
+
+   /**
+     * Sets whether Huffman tables are computed for each image, which makes
+     * files a few percent smaller at the cost of a second pass over the data.
+     *
+     * @param optimizeHuffman {@code true} to optimize Huffman tables
+     */
+    public void setOptimizeHuffman(boolean optimizeHuffman) {
+        this.optimizeHuffman = optimizeHuffman;
+    }
+
+   /**
+     * Returns the chroma subsampling.
+     *
+     * @return the chroma subsampling
+     */
+    public Subsampling getSubsampling() {
+        return subsampling;
+    }
+
+   /**
+     * Sets the chroma subsampling.
+     *
+     * @param subsampling the chroma subsampling
+     * @throws IllegalArgumentException if {@code subsampling} is {@code null}
+     */
+    public void setSubsampling(Subsampling subsampling) {
+        if (subsampling == null) throw new IllegalArgumentException("subsampling argument is null");
+        this.subsampling = subsampling;
+    }
+
+   /**
+     * Returns true if writing to a stream buffers through a temporary file.
+     *
+     * @return {@code true} if the disk cache is used
+     */
+    public boolean isUseCache() {
+        return useCache;
+    }
+
+   /**
+     * Sets whether writing to an {@link OutputStream} buffers the encoded
+     * data in a temporary file instead of in memory. Writing to a file never
+     * needs the buffer.
+     *
+     * @param useCache {@code true} to buffer through a temporary file
+     */
+    public void setUseCache(boolean useCache) {
+        this.useCache = useCache;
+    }
+
+   /**
+     * Writes {@code picture} to {@code file} as a JPEG.
+     *
+     * @param picture the picture
+     * @param file the file
+     * @throws IllegalArgumentException if {@code picture} or {@code file} is {@code null}
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Picture picture, File file) throws IOException {
+        if (picture == null) throw new IllegalArgumentException("picture argument is null");
+        if (file == null) throw new IllegalArgumentException("file argument is null");
+        if (file.exists() && !file.delete()) throw new IOException("could not replace " + file);
+        try (ImageOutputStream out = new FileImageOutputStream(file)) {
+            write(image(picture), out);
+        }
+    }
+
+   /**
+     * Writes {@code picture} to {@code out} as a JPEG. The stream is not closed.
+     *
+     * @param picture the picture
+     * @param out the stream to write to
+     * @throws IllegalArgumentException if {@code picture} or {@code out} is {@code null}
+     * @throws IOException if the stream cannot be written
+     */
+    public void write(Picture picture, OutputStream out) throws IOException {
+        if (picture == null) throw new IllegalArgumentException("picture argument is null");
+        if (out == null) throw new IllegalArgumentException("out argument is null");
+        ImageOutputStream stream = useCache ? new FileCacheImageOutputStream(out, null)
+                                            : new MemoryCacheImageOutputStream(out);
+        try {
+            write(image(picture), stream);
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    // the picture's own image if it has one, or else its rows streamed a strip at a time
+    private static RenderedImage image(Picture picture) {
+        return picture.hasPixelArray() ? picture.toBufferedImage() : new StreamingImage(picture);
+    }
+
+    private void write(RenderedImage image, ImageOutputStream out) throws IOException {
+        ImageWriter writer = acquire();
+        try {
+            JPEGImageWriteParam param = (JPEGImageWriteParam) writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            param.setOptimizeHuffmanTables(optimizeHuffman || progressive);
+            param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+
+            IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+            if (subsampling != Subsampling.S420) setSubsampling(metadata);
+
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+            out.flush();
+        }
+        finally {
+            release(writer);
+        }
+    }
+
+    // sets the luma sampling factors in the frame header; chroma stays at 1x1
+    private void setSubsampling(IIOMetadata metadata) throws IOException {
+        String format = "javax_imageio_jpeg_image_1.0";
+        Node root = metadata.getAsTree(format);
+        for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (!"markerSequence".equals(n.getNodeName())) continue;
+            for (Node m = n.getFirstChild(); m != null; m = m.getNextSibling()) {
+                if (!"sof".equals(m.getNodeName())) continue;
+                IIOMetadataNode luma = (IIOMetadataNode) m.getFirstChild();
+                luma.setAttribute("HsamplingFactor", Integer.toString(subsampling.h));
+                luma.setAttribute("VsamplingFactor", Integer.toString(subsampling.v));
+            }
+        }
+        metadata.setFromTree(format, root);
+    }
+
+    private static ImageWriter acquire() {
+        ImageWriter writer = pool.poll();
+        if (writer != null) {
+            pooled.decrementAndGet();
+            return writer;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) throw new IllegalStateException("no JPEG writer available");
+        return writers.next();
+    }
+
+    private static void release(ImageWriter writer) {
+        writer.reset();
+        if (pooled.incrementAndGet() <= POOL_SIZE) {
+            pool.add(writer);
+        }
+        else {
+            pooled.decrementAndGet();
+            writer.dispose();
+        }
+    }
+}
@@ -18,15 +18,32 @@
 
 import java.awt.Color;
 import java.awt.FileDialog;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -57,6 +74,17 @@ import javax.swing.KeyStroke;
  *  to encode the color, thereby avoiding the need to create temporary
  *  {@code Color} objects. The red (R), green (G), and blue (B) components 
  *  are encoded using the least significant 24 bits.
+ *  The bulk {@code getRGB()} and {@code setRGB()} methods read or write a whole
+ *  rectangle (or row) of pixels to or from an {@code int} array with a given
+ *  stride, validating the arguments once per call instead of once per pixel.
+ *  For the tightest loops, {@link #getPixelArray()} exposes the backing array of
+ *  the {@link DataBufferInt} directly.
+ *  <p>
+ *  A picture created with {@link Storage#OFF_HEAP} keeps its pixels in direct
+ *  memory outside the Java heap instead, so it can be larger than the heap.
+ *  It supports the same per-pixel and bulk methods, but has no pixel array
+ *  (see {@link #hasPixelArray()}), is copied into an on-heap image only to be
+ *  shown or saved, and should be released with {@link #close()}.
  *  Given a 32-bit {@code int} encoding the color, the following code extracts
  *  the RGB components:
  * <blockquote><pre>
@@ -82,12 +110,35 @@ import javax.swing.KeyStroke;
  *  @author Robert Sedgewick
  *  @author Kevin Wayne
  */
-public final class Picture implements ActionListener {
+public final class Picture implements ActionListener, AutoCloseable {
+
+    /**
+     * Where a picture keeps its pixels.
+     */
+    public enum Storage {
+        /** In a {@link BufferedImage} on the Java heap. */
+        HEAP,
+        /** In direct buffers outside the Java heap, freed by {@link Picture#close()}. */
+        OFF_HEAP
+    }
+
+    // each direct buffer of an off-heap picture holds at most this many bytes
+    private static final int BAND_BYTES = 1 << 30;
+
     private BufferedImage image;               // the rasterized image
     private JFrame frame;                      // on-screen view
+    private BufferedImage view;                // heap copy an off-heap picture is shown through
     private String filename;                   // name of file
     private boolean isOriginUpperLeft = true;  // location of origin
     private final int width, height;           // width and height
+    private int[] pixels;                      // backing array of the raster
+    private int offset;                        // index of pixel (0, 0) in pixels
+    private int stride;                        // distance between rows in pixels
+    private boolean shared;                    // pixels may be shared with a crop
+    private volatile Mipmaps mipmaps;          // reductions of the pixels, built on demand
+    private ByteBuffer[] bands;                // off-heap storage, in bands of whole rows
+    private IntBuffer[] bandPixels;            // the bands viewed as ints
+    private int bandRows;                      // rows per band
 
    /**
      * Creates a {@code width}-by-{@code height} picture, with {@code width} columns
@@ -105,6 +156,43 @@ public final class Picture implements ActionListener {
         this.height = height;
         image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         // set to TYPE_INT_ARGB here and in next constructor to support transparency
+        bindRaster();
+    }
+
+   /**
+     * Creates a {@code width}-by-{@code height} picture, with {@code width} columns
+     * and {@code height} rows, where each pixel is black, keeping its pixels in
+     * the given storage.
+     *
+     * @param width the width of the picture
+     * @param height the height of the picture
+     * @param storage where to keep the pixels
+     * @throws IllegalArgumentException if {@code width} is negative or zero
+     * @throws IllegalArgumentException if {@code height} is negative or zero
+     * @throws IllegalArgumentException if {@code storage} is {@code null}
+     */
+    public Picture(int width, int height, Storage storage) {
+        if (width  <= 0) throw new IllegalArgumentException("width must be positive");
+        if (height <= 0) throw new IllegalArgumentException("height must be positive");
+        if (storage == null) throw new IllegalArgumentException("storage argument is null");
+        this.width  = width;
+        this.height = height;
+        if (storage == Storage.HEAP) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            bindRaster();
+            return;
+        }
+
+        // direct buffers are zeroed, so the picture starts out black
+        bandRows = Math.max(1, Math.min(height, BAND_BYTES / (4 * width)));
+        int count = (height + bandRows - 1) / bandRows;
+        bands = new ByteBuffer[count];
+        bandPixels = new IntBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int rows = Math.min(bandRows, height - i * bandRows);
+            bands[i] = ByteBuffer.allocateDirect(4 * rows * width).order(ByteOrder.nativeOrder());
+            bandPixels[i] = bands[i].asIntBuffer();
+        }
     }
 
    /**
@@ -119,11 +207,37 @@ public final class Picture implements ActionListener {
         width  = picture.width();
         height = picture.height();
         image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        bindRaster();
         filename = picture.filename;
         isOriginUpperLeft = picture.isOriginUpperLeft;
-        for (int col = 0; col < width(); col++)
-            for (int row = 0; row < height(); row++)
-                image.setRGB(col, row, picture.image.getRGB(col, row));
+        for (int y = 0; y < height; y++)
+            picture.getRasterRow(0, y, width, pixels, offset + y * stride);
+    }
+
+    // crop view sharing the raster of parent, see crop()
+    private Picture(Picture parent, int col, int row, int width, int height) {
+        this.width  = width;
+        this.height = height;
+        int top = parent.isOriginUpperLeft ? row : parent.height - row - height;
+        filename = parent.filename;
+        isOriginUpperLeft = parent.isOriginUpperLeft;
+        if (!parent.hasPixelArray()) {
+            // off-heap pixels cannot be viewed as an image, so copy them
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            bindRaster();
+            for (int y = 0; y < height; y++)
+                parent.getRasterRow(col, top + y, width, pixels, y * stride);
+            return;
+        }
+        image = parent.image.getSubimage(col, top, width, height);
+        bindRaster();
+        shared = true;
+        parent.shared = true;
+
+        // a crop of the whole picture has the same pixels, so the same pyramid
+        if (width == parent.width && height == parent.height) {
+            mipmaps = parent.pyramid();
+        }
     }
 
    /**
@@ -166,6 +280,8 @@ public final class Picture implements ActionListener {
                 throw new IllegalArgumentException("could not read image: " + name);
             }
 
+            image = toIntRGB(image);
+            bindRaster();
             width  = image.getWidth(null);
             height = image.getHeight(null);
         }
@@ -193,11 +309,199 @@ public final class Picture implements ActionListener {
         if (image == null) {
             throw new IllegalArgumentException("could not read file: " + file);
         }
+        image = toIntRGB(image);
+        bindRaster();
         width  = image.getWidth(null);
         height = image.getHeight(null);
         filename = file.getName();
     }
 
+    // picture around an image decoded by load()
+    private Picture(BufferedImage image, String filename) {
+        this.image = toIntRGB(image);
+        bindRaster();
+        this.width  = image.getWidth();
+        this.height = image.getHeight();
+        this.filename = filename;
+    }
+
+   /**
+     * Reads the image in a file or URL, decoding no more pixels than a
+     * {@code targetWidth}-by-{@code targetHeight} picture needs.
+     * Equivalent to {@code load(name, null, targetWidth, targetHeight)}.
+     *
+     * @param  name the name of the file (.png, .gif, or .jpg) or URL
+     * @param  targetWidth the width the caller will scale the picture to
+     * @param  targetHeight the height the caller will scale the picture to
+     * @return the picture, at least {@code targetWidth}-by-{@code targetHeight}
+     *         unless the image is smaller
+     * @throws IllegalArgumentException if cannot read image
+     * @throws IllegalArgumentException if {@code name} is {@code null}
+     * @throws IllegalArgumentException if {@code targetWidth} or {@code targetHeight} is not positive
+     */
+    public static Picture load(String name, int targetWidth, int targetHeight) {
+        return load(name, null, targetWidth, targetHeight);
+    }
+
+   /**
+     * Reads the {@code region} of the image in a file or URL, decoding no more
+     * pixels than a {@code targetWidth}-by-{@code targetHeight} picture needs.
+     * The decoder skips every pixel outside {@code region}, and keeps only every
+     * <em>k</em>th column and row inside it for the largest <em>k</em> that
+     * leaves at least {@code targetWidth} columns and {@code targetHeight} rows
+     * (the two axes are subsampled independently). The picture returned is
+     * therefore close to the target size, ready for a final
+     * {@link Resampler#resample(Picture, Picture, Resampler.Filter)}, and a
+     * large JPEG destined for a small tile is never held in memory at full size.
+     * The name is resolved as in {@link #Picture(String)}.
+     *
+     * @param  name the name of the file (.png, .gif, or .jpg) or URL
+     * @param  region the rectangle of the image to read, in image coordinates
+     *         with the origin upper left, or {@code null} for the whole image
+     * @param  targetWidth the width the caller will scale the region to
+     * @param  targetHeight the height the caller will scale the region to
+     * @return the picture, at least {@code targetWidth}-by-{@code targetHeight}
+     *         unless the region is smaller
+     * @throws IllegalArgumentException if cannot read image
+     * @throws IllegalArgumentException if {@code name} is {@code null}
+     * @throws IllegalArgumentException if {@code region} does not overlap the image
+     * @throws IllegalArgumentException if {@code targetWidth} or {@code targetHeight} is not positive
+     */
+    public static Picture load(String name, Rectangle region, int targetWidth, int targetHeight) {
+        if (name == null) throw new IllegalArgumentException("name argument is null");
+        if (targetWidth  <= 0) throw new IllegalArgumentException("target width must be positive");
+        if (targetHeight <= 0) throw new IllegalArgumentException("target height must be positive");
+
+        try {
+            File file = new File(name);
+            if (file.isFile()) {
+                try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+                    return decode(in, name, region, targetWidth, targetHeight);
+                }
+            }
+
+            // resource relative to this class, to the classloader root, or URL from web
+            URL url = Picture.class.getResource(name);
+            if (url == null) url = Picture.class.getClassLoader().getResource(name);
+            if (url == null) url = new URL(name);
+            try (InputStream stream = url.openStream();
+                 ImageInputStream in = ImageIO.createImageInputStream(stream)) {
+                return decode(in, name, region, targetWidth, targetHeight);
+            }
+        }
+        catch (IOException ioe) {
+            throw new IllegalArgumentException("could not open image: " + name, ioe);
+        }
+    }
+
+   /**
+     * Starts reading the image in a file or URL on {@code executor}, as by
+     * {@link #Picture(String)}, and returns without waiting for it. A caller
+     * can start the next decode while it works on the last picture loaded.
+     *
+     * @param  name the name of the file (.png, .gif, or .jpg) or URL
+     * @param  executor the executor to decode on
+     * @return a future completed with the picture, or exceptionally with an
+     *         {@code IllegalArgumentException} if the image cannot be read
+     * @throws IllegalArgumentException if {@code name} or {@code executor} is {@code null}
+     */
+    public static CompletableFuture<Picture> loadAsync(String name, Executor executor) {
+        if (name == null) throw new IllegalArgumentException("name argument is null");
+        if (executor == null) throw new IllegalArgumentException("executor argument is null");
+        return CompletableFuture.supplyAsync(() -> new Picture(name), executor);
+    }
+
+   /**
+     * Starts reading the {@code region} of the image in a file or URL on
+     * {@code executor}, as by {@link #load(String, Rectangle, int, int)},
+     * and returns without waiting for it.
+     *
+     * @param  name the name of the file (.png, .gif, or .jpg) or URL
+     * @param  region the rectangle of the image to read, or {@code null} for the whole image
+     * @param  targetWidth the width the caller will scale the region to
+     * @param  targetHeight the height the caller will scale the region to
+     * @param  executor the executor to decode on
+     * @return a future completed with the picture, or exceptionally with an
+     *         {@code IllegalArgumentException} if the image cannot be read
+     * @throws IllegalArgumentException if {@code name} or {@code executor} is {@code null}
+     * @throws IllegalArgumentException if {@code targetWidth} or {@code targetHeight} is not positive
+     */
+    public static CompletableFuture<Picture> loadAsync(String name, Rectangle region,
+                                                       int targetWidth, int targetHeight, Executor executor) {
+        if (name == null) throw new IllegalArgumentException("name argument is null");
+        if (targetWidth  <= 0) throw new IllegalArgumentException("target width must be positive");
+        if (targetHeight <= 0) throw new IllegalArgumentException("target height must be positive");
+        if (executor == null) throw new IllegalArgumentException("executor argument is null");
+        return CompletableFuture.supplyAsync(() -> load(name, region, targetWidth, targetHeight), executor);
+    }
+
+    // decodes the region of the first image in the stream with source subsampling
+    private static Picture decode(ImageInputStream in, String name, Rectangle region,
+                                  int targetWidth, int targetHeight) throws IOException {
+        Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+        if (readers == null || !readers.hasNext()) {
+            throw new IllegalArgumentException("could not read image: " + name);
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            Rectangle bounds = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+            Rectangle source = region == null ? bounds : region.intersection(bounds);
+            if (source.isEmpty()) {
+                throw new IllegalArgumentException("region " + region + " is outside the "
+                                                   + bounds.width + "-by-" + bounds.height + " image " + name);
+            }
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(source);
+            param.setSourceSubsampling(Math.max(1, source.width  / targetWidth),
+                                       Math.max(1, source.height / targetHeight), 0, 0);
+            return new Picture(reader.read(0, param), name);
+        }
+        finally {
+            reader.dispose();
+        }
+    }
+
+    // decoders return whatever layout suits the file (3BYTE_BGR for most JPEGs),
+    // so normalize to TYPE_INT_RGB once, here, to get a DataBufferInt raster
+    private static BufferedImage toIntRGB(BufferedImage source) {
+        if (source.getType() == BufferedImage.TYPE_INT_RGB) return source;
+        BufferedImage converted = new BufferedImage(source.getWidth(), source.getHeight(),
+                                                    BufferedImage.TYPE_INT_RGB);
+        converted.getGraphics().drawImage(source, 0, 0, null);
+        return converted;
+    }
+
+    // caches the backing array, the offset of pixel (0, 0) and the scanline stride
+    private void bindRaster() {
+        WritableRaster raster = image.getRaster();
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        pixels = buffer.getData();
+        stride = model.getScanlineStride();
+        offset = buffer.getOffset() + model.getOffset(-raster.getSampleModelTranslateX(),
+                                                      -raster.getSampleModelTranslateY());
+    }
+
+    // gives this picture a private copy of its pixels before a write
+    // if a crop may still be looking at them, and drops its pyramid
+    private void prepareWrite() {
+        if (mipmaps != null) mipmaps = null;     // a volatile store only when there is a pyramid
+        if (!shared) return;
+        BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++)
+            System.arraycopy(pixels, offset + y * stride, data, y * width, width);
+        image = copy;
+        bindRaster();
+        shared = false;
+        if (frame != null) {
+            frame.setContentPane(viewLabel());
+            frame.revalidate();
+        }
+    }
+
    /**
      * Returns a {@link JLabel} containing this picture, for embedding in a {@link JPanel},
      * {@link JFrame} or other GUI widget.
@@ -205,11 +509,93 @@ public final class Picture implements ActionListener {
      * @return the {@code JLabel}
      */
     public JLabel getJLabel() {
-        if (image == null) return null;         // no image available
-        ImageIcon icon = new ImageIcon(image);
+        ImageIcon icon = new ImageIcon(toBufferedImage());
         return new JLabel(icon);
     }
 
+    // the label for this picture's own window, keeping the copy an off-heap picture is shown through
+    private JLabel viewLabel() {
+        BufferedImage shown = toBufferedImage();
+        view = image == null ? shown : null;
+        return new JLabel(new ImageIcon(shown));
+    }
+
+   /**
+     * Returns this picture as a {@link BufferedImage} of type
+     * {@code TYPE_INT_RGB}. For an on-heap picture this is the image holding
+     * its pixels; for an off-heap picture it is a copy made on the heap.
+     *
+     * @return the image
+     * @throws IllegalStateException if this off-heap picture has been closed
+     */
+    public BufferedImage toBufferedImage() {
+        if (image != null) return image;
+        BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++)
+            getRasterRow(0, y, width, data, y * width);
+        return copy;
+    }
+
+   /**
+     * Returns true if this picture keeps its pixels in an {@code int} array,
+     * that is, if it was not created with {@link Storage#OFF_HEAP}.
+     * Only then are {@link #getPixelArray()} and its companions supported.
+     *
+     * @return {@code true} if this picture has a pixel array
+     */
+    public boolean hasPixelArray() {
+        return image != null;
+    }
+
+   /**
+     * Frees the off-heap memory of this picture and closes its window.
+     * An off-heap picture cannot be used once closed. For an on-heap picture,
+     * whose memory is reclaimed by the garbage collector, this only closes
+     * the window.
+     */
+    @Override
+    public void close() {
+        closeWindow();
+        if (bands == null) return;
+        for (ByteBuffer band : bands)
+            free(band);
+        bands = null;
+        bandPixels = null;
+    }
+
+    // sun.misc.Unsafe.invokeCleaner(ByteBuffer), or null if not available
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+    static {
+        Object instance = null;
+        Method method = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            instance = field.get(null);
+            method = type.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            instance = null;
+            method = null;
+        }
+        unsafe = instance;
+        invokeCleaner = method;
+    }
+
+    // releases a direct buffer now if the JDK allows it, else leaves it to the collector
+    private static void free(ByteBuffer buffer) {
+        if (invokeCleaner == null) return;
+        try {
+            invokeCleaner.invoke(unsafe, buffer);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // the buffer is freed when it is collected
+        }
+    }
+
    /**
      * Sets the origin to be the upper left pixel. This is the default.
      */
@@ -246,7 +632,7 @@ public final class Picture implements ActionListener {
 
 
 
-            frame.setContentPane(getJLabel());
+            frame.setContentPane(viewLabel());
             // f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
             frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
             if (filename == null) frame.setTitle(width + "-by-" + height);
@@ -256,10 +642,50 @@ public final class Picture implements ActionListener {
             frame.setVisible(true);
         }
 
+        // an off-heap picture is shown through a copy, so refresh it
+        else if (image == null) {
+            refreshView(0, 0, width, height);
+        }
+
         // draw
         frame.repaint();
     }
 
+   /**
+     * Redraws only the given rectangle of the window showing this picture,
+     * after pixels inside it have changed; the cost is proportional to the
+     * rectangle, not to the picture. The rectangle is in raster coordinates,
+     * with the origin upper left, like {@link #getRasterRow}. Opens the window,
+     * drawing the whole picture, if it is not open yet.
+     *
+     * @param x the column of the upper left corner
+     * @param y the row of the upper left corner, counted from the top
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @throws IllegalArgumentException if the rectangle is not inside the picture
+     */
+    public void show(int x, int y, int w, int h) {
+        validateRectangle(x, y, w, h);
+        if (frame == null) {
+            show();
+            return;
+        }
+        if (image == null) refreshView(x, y, w, h);
+        frame.getContentPane().repaint(x, y, w, h);
+    }
+
+    // copies a rectangle of an off-heap picture into the heap copy it is shown through
+    private void refreshView(int x, int y, int w, int h) {
+        if (view == null) {
+            frame.setContentPane(viewLabel());
+            frame.revalidate();
+            return;
+        }
+        int[] data = ((DataBufferInt) view.getRaster().getDataBuffer()).getData();
+        for (int row = y; row < y + h; row++)
+            getRasterRow(x, row, w, data, row * width + x);
+    }
+
     public void closeWindow () {
         if ( frame != null ) frame.dispose();
     }
@@ -320,8 +746,9 @@ public final class Picture implements ActionListener {
     public int getRGB(int col, int row) {
         validateColumnIndex(col);
         validateRowIndex(row);
-        if (isOriginUpperLeft) return image.getRGB(col, row);
-        else                   return image.getRGB(col, height - row - 1);
+        if (pixels != null) return 0xFF000000 | pixels[index(col, row)];
+        int y = rasterRow(row);
+        return 0xFF000000 | band(y).get((y % bandRows) * width + col);
     }
 
    /**
@@ -352,8 +779,432 @@ public final class Picture implements ActionListener {
     public void setRGB(int col, int row, int rgb) {
         validateColumnIndex(col);
         validateRowIndex(row);
-        if (isOriginUpperLeft) image.setRGB(col, row, rgb);
-        else                   image.setRGB(col, height - row - 1, rgb);
+        prepareWrite();
+        if (pixels != null) {
+            pixels[index(col, row)] = rgb & 0xFFFFFF;
+            return;
+        }
+        int y = rasterRow(row);
+        band(y).put((y % bandRows) * width + col, rgb & 0xFFFFFF);
+    }
+
+    // raster row (counted from the top of the image) of row, honoring the origin
+    private int rasterRow(int row) {
+        return isOriginUpperLeft ? row : height - row - 1;
+    }
+
+    // index into pixels of pixel (col, row), honoring the origin
+    private int index(int col, int row) {
+        return offset + rasterRow(row) * stride + col;
+    }
+
+    // the off-heap band holding raster row y
+    private IntBuffer band(int y) {
+        if (bandPixels == null) throw new IllegalStateException("picture has been closed");
+        return bandPixels[y / bandRows];
+    }
+
+    // copies w pixels of raster row y, starting at column x, into dst at dstOffset
+    private void readRaster(int x, int y, int w, int[] dst, int dstOffset) {
+        if (pixels != null) System.arraycopy(pixels, offset + y * stride + x, dst, dstOffset, w);
+        else                band(y).get((y % bandRows) * width + x, dst, dstOffset, w);
+    }
+
+    // copies w pixels from src at srcOffset into raster row y, starting at column x
+    private void writeRaster(int x, int y, int w, int[] src, int srcOffset) {
+        if (pixels != null) System.arraycopy(src, srcOffset, pixels, offset + y * stride + x, w);
+        else                band(y).put((y % bandRows) * width + x, src, srcOffset, w);
+    }
+
+    private void validateRectangle(int col, int row, int w, int h) {
+        if (w < 0 || h < 0)
+            throw new IllegalArgumentException("rectangle dimensions must be nonnegative: " + w + "-by-" + h);
+        if (col < 0 || row < 0 || col + w > width || row + h > height)
+            throw new IllegalArgumentException("rectangle " + w + "-by-" + h + " at (" + col + ", " + row
+                                               + ") is outside the " + width + "-by-" + height + " picture");
+    }
+
+    private static void validateArray(int[] rgbArray, int offset, int scansize, int w, int h) {
+        if (rgbArray == null) throw new IllegalArgumentException("rgbArray argument is null");
+        if (w == 0 || h == 0) return;
+        if (offset < 0 || scansize < w || offset + (long) (h - 1) * scansize + w > rgbArray.length)
+            throw new IllegalArgumentException("rgbArray of length " + rgbArray.length + " cannot hold "
+                                               + w + "-by-" + h + " pixels at offset " + offset
+                                               + " with scansize " + scansize);
+    }
+
+   /**
+     * Copies the colors of the {@code w}-by-{@code h} rectangle whose upper left
+     * pixel is ({@code col}, {@code row}) into {@code rgbArray}. Pixel
+     * ({@code col + i}, {@code row + j}) is stored at
+     * {@code rgbArray[offset + j*scansize + i]}.
+     * Only the least significant 24 bits of each element are meaningful.
+     *
+     * @param col the column index of the upper left pixel
+     * @param row the row index of the upper left pixel
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param rgbArray the array to fill, or {@code null} to allocate one of {@code offset + h*scansize} elements
+     * @param offset the index in {@code rgbArray} of the first pixel
+     * @param scansize the distance in {@code rgbArray} between the starts of consecutive rows
+     * @return {@code rgbArray}
+     * @throws IllegalArgumentException unless the rectangle lies inside the picture
+     * @throws IllegalArgumentException if {@code rgbArray} is too small
+     */
+    public int[] getRGB(int col, int row, int w, int h, int[] rgbArray, int offset, int scansize) {
+        validateRectangle(col, row, w, h);
+        if (rgbArray == null) rgbArray = new int[offset + h * scansize];
+        validateArray(rgbArray, offset, scansize, w, h);
+        for (int j = 0; j < h; j++)
+            readRaster(col, rasterRow(row + j), w, rgbArray, offset + j * scansize);
+        return rgbArray;
+    }
+
+   /**
+     * Sets the colors of the {@code w}-by-{@code h} rectangle whose upper left
+     * pixel is ({@code col}, {@code row}) from {@code rgbArray}. Pixel
+     * ({@code col + i}, {@code row + j}) is read from
+     * {@code rgbArray[offset + j*scansize + i]}.
+     * Only the least significant 24 bits of each element are meaningful.
+     *
+     * @param col the column index of the upper left pixel
+     * @param row the row index of the upper left pixel
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param rgbArray the colors to write
+     * @param offset the index in {@code rgbArray} of the first pixel
+     * @param scansize the distance in {@code rgbArray} between the starts of consecutive rows
+     * @throws IllegalArgumentException unless the rectangle lies inside the picture
+     * @throws IllegalArgumentException if {@code rgbArray} is {@code null} or too small
+     */
+    public void setRGB(int col, int row, int w, int h, int[] rgbArray, int offset, int scansize) {
+        validateRectangle(col, row, w, h);
+        validateArray(rgbArray, offset, scansize, w, h);
+        prepareWrite();
+        for (int j = 0; j < h; j++)
+            writeRaster(col, rasterRow(row + j), w, rgbArray, offset + j * scansize);
+    }
+
+   /**
+     * Copies {@code w} pixels of the {@code y}th row from the top of the image,
+     * starting at column {@code x}, into {@code rgbArray}. Unlike
+     * {@link #getRow(int, int[], int)}, this ignores {@link #setOriginLowerLeft()},
+     * which makes it the way to walk the image top to bottom in any storage.
+     *
+     * @param x the column of the first pixel
+     * @param y the row, counted from the top of the image
+     * @param w the number of pixels
+     * @param rgbArray the array to fill
+     * @param offset the index in {@code rgbArray} of the first pixel
+     * @throws IllegalArgumentException unless the pixels lie inside the picture
+     * @throws IllegalArgumentException if {@code rgbArray} is {@code null} or too small
+     */
+    public void getRasterRow(int x, int y, int w, int[] rgbArray, int offset) {
+        validateRectangle(x, y, w, 1);
+        validateArray(rgbArray, offset, w, w, 1);
+        readRaster(x, y, w, rgbArray, offset);
+    }
+
+   /**
+     * Sets {@code w} pixels of the {@code y}th row from the top of the image,
+     * starting at column {@code x}, from {@code rgbArray}. Ignores
+     * {@link #setOriginLowerLeft()}, like {@link #getRasterRow(int, int, int, int[], int)}.
+     *
+     * @param x the column of the first pixel
+     * @param y the row, counted from the top of the image
+     * @param w the number of pixels
+     * @param rgbArray the colors to write
+     * @param offset the index in {@code rgbArray} of the first pixel
+     * @throws IllegalArgumentException unless the pixels lie inside the picture
+     * @throws IllegalArgumentException if {@code rgbArray} is {@code null} or too small
+     */
+    public void setRasterRow(int x, int y, int w, int[] rgbArray, int offset) {
+        validateRectangle(x, y, w, 1);
+        validateArray(rgbArray, offset, w, w, 1);
+        prepareWrite();
+        writeRaster(x, y, w, rgbArray, offset);
+    }
+
+   /**
+     * Copies the colors of row {@code row} into {@code rgbArray}, starting at
+     * index {@code offset}.
+     *
+     * @param row the row index
+     * @param rgbArray the array to fill, or {@code null} to allocate one
+     * @param offset the index in {@code rgbArray} of pixel (0, {@code row})
+     * @return {@code rgbArray}
+     * @throws IllegalArgumentException unless {@code 0 <= row < height}
+     * @throws IllegalArgumentException if {@code rgbArray} is too small
+     */
+    public int[] getRow(int row, int[] rgbArray, int offset) {
+        return getRGB(0, row, width, 1, rgbArray, offset, width);
+    }
+
+   /**
+     * Sets the colors of row {@code row} from {@code rgbArray}, starting at
+     * index {@code offset}.
+     *
+     * @param row the row index
+     * @param rgbArray the colors to write
+     * @param offset the index in {@code rgbArray} of pixel (0, {@code row})
+     * @throws IllegalArgumentException unless {@code 0 <= row < height}
+     * @throws IllegalArgumentException if {@code rgbArray} is {@code null} or too small
+     */
+    public void setRow(int row, int[] rgbArray, int offset) {
+        setRGB(0, row, width, 1, rgbArray, offset, width);
+    }
+
+   /**
+     * Returns the {@link DataBufferInt} holding the pixels of this picture.
+     * The buffer stores rows top to bottom regardless of the origin, see
+     * {@link #getPixelArray()} for the layout.
+     *
+     * @return the data buffer backing this picture
+     * @throws UnsupportedOperationException unless {@link #hasPixelArray()}
+     */
+    public DataBufferInt getDataBuffer() {
+        requirePixelArray();
+        prepareWrite();
+        return (DataBufferInt) image.getRaster().getDataBuffer();
+    }
+
+   /**
+     * Returns the array backing this picture, without copying it.
+     * The color of the pixel in column <em>x</em> of the <em>y</em>th row from
+     * the top is at index {@code getPixelOffset() + y*getScanlineStride() + x},
+     * independent of {@link #setOriginLowerLeft()}. Only the least significant
+     * 24 bits of each element are meaningful.
+     * Writes to the array change the picture; if the pixels are shared with
+     * a crop, this picture first takes a private copy of them.
+     *
+     * @return the backing array
+     * @throws UnsupportedOperationException unless {@link #hasPixelArray()}
+     */
+    public int[] getPixelArray() {
+        requirePixelArray();
+        prepareWrite();
+        return pixels;
+    }
+
+   /**
+     * Returns the array backing this picture without taking a private copy,
+     * even if it is shared with a crop. The layout is the same as for
+     * {@link #getPixelArray()}, but the array must only be read.
+     *
+     * @return the backing array, possibly shared
+     * @throws UnsupportedOperationException unless {@link #hasPixelArray()}
+     */
+    public int[] getSharedPixelArray() {
+        requirePixelArray();
+        return pixels;
+    }
+
+   /**
+     * Returns the index in {@link #getPixelArray()} of the upper left pixel.
+     *
+     * @return the offset of the upper left pixel
+     * @throws UnsupportedOperationException unless {@link #hasPixelArray()}
+     */
+    public int getPixelOffset() {
+        requirePixelArray();
+        return offset;
+    }
+
+   /**
+     * Returns the distance in {@link #getPixelArray()} between the starts of
+     * two consecutive rows.
+     *
+     * @return the scanline stride
+     * @throws UnsupportedOperationException unless {@link #hasPixelArray()}
+     */
+    public int getScanlineStride() {
+        requirePixelArray();
+        return stride;
+    }
+
+    private void requirePixelArray() {
+        if (pixels == null)
+            throw new UnsupportedOperationException("an off-heap picture has no pixel array");
+    }
+
+   /**
+     * Returns the smallest level of the mipmap pyramid of this picture that is
+     * at least {@code targetWidth}-by-{@code targetHeight}. Level 0 is this
+     * picture and each further level halves the one before in both dimensions,
+     * averaging each 2-by-2 block of pixels, so scaling the level returned to
+     * the target size reads at most about four source pixels per target pixel
+     * and no longer aliases.
+     * <p>
+     * Levels are built on first use and kept until this picture is next
+     * written to; crops of the whole picture share them. Deeper levels are
+     * returned as crops, so writing to them never changes the pyramid.
+     *
+     * @param targetWidth the width the level will be scaled to
+     * @param targetHeight the height the level will be scaled to
+     * @return this picture, or the deepest level no smaller than the target
+     * @throws IllegalArgumentException if {@code targetWidth} or {@code targetHeight} is not positive
+     */
+    public Picture mipmap(int targetWidth, int targetHeight) {
+        if (targetWidth  <= 0) throw new IllegalArgumentException("target width must be positive");
+        if (targetHeight <= 0) throw new IllegalArgumentException("target height must be positive");
+        if (width < 2 * targetWidth || height < 2 * targetHeight) return this;
+
+        Picture level = pyramid().level(this, targetWidth, targetHeight);
+        return level.crop(0, 0, level.width, level.height);
+    }
+
+    // the pyramid of this picture, created on first use; crops may be taken
+    // from several threads at once, so it is created under a lock and
+    // published through the volatile field
+    private Mipmaps pyramid() {
+        Mipmaps pyramid = mipmaps;
+        if (pyramid == null) {
+            synchronized (this) {
+                pyramid = mipmaps;
+                if (pyramid == null) mipmaps = pyramid = new Mipmaps();
+            }
+        }
+        return pyramid;
+    }
+
+    // levels 1, 2, ... of the pyramid of a picture; shared by whole-picture crops,
+    // which may use it from several threads
+    private static final class Mipmaps {
+        private final ArrayList<Picture> levels = new ArrayList<>();
+
+        synchronized Picture level(Picture base, int targetWidth, int targetHeight) {
+            Picture level = base;
+            for (int k = 0; ; k++) {
+                if (level.width < 2 * targetWidth || level.height < 2 * targetHeight) return level;
+                if (k == levels.size()) levels.add(halve(level));
+                level = levels.get(k);
+            }
+        }
+
+        // 2-by-2 box filter, averaging the three components in two masked adds;
+        // an odd last row or column is dropped
+        private static Picture halve(Picture source) {
+            Picture half = new Picture(source.width / 2, source.height / 2);
+            int[] top = new int[source.width];
+            int[] bottom = new int[source.width];
+            int[] to = half.pixels;
+            for (int y = 0; y < half.height; y++) {
+                source.readRaster(0, 2 * y, source.width, top, 0);
+                source.readRaster(0, 2 * y + 1, source.width, bottom, 0);
+                int out = y * half.stride;
+                for (int x = 0; x < half.width; x++) {
+                    int a = top[2*x], b = top[2*x + 1];
+                    int c = bottom[2*x], d = bottom[2*x + 1];
+                    int rb = (a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF) + (d & 0xFF00FF) + 0x020002;
+                    int g  = (a & 0x00FF00) + (b & 0x00FF00) + (c & 0x00FF00) + (d & 0x00FF00) + 0x000200;
+                    to[out + x] = ((rb >> 2) & 0xFF00FF) | ((g >> 2) & 0x00FF00);
+                }
+            }
+            return half;
+        }
+    }
+
+   /**
+     * Returns the {@code w}-by-{@code h} rectangle of this picture whose upper
+     * left pixel is ({@code col}, {@code row}) as a new picture.
+     * For a picture on the heap no pixels are copied: the crop is a view of
+     * this picture's raster, and whichever of the two is written to first
+     * takes a private copy, so changes to one are never visible in the other.
+     * The pixels of an off-heap picture cannot be viewed, so its crops are
+     * copied to the heap when they are made, in time proportional to
+     * {@code w * h}.
+     *
+     * @param col the column index of the upper left pixel
+     * @param row the row index of the upper left pixel
+     * @param w the width of the crop
+     * @param h the height of the crop
+     * @return the crop
+     * @throws IllegalArgumentException unless the rectangle lies inside the picture
+     * @throws IllegalArgumentException if {@code w} or {@code h} is not positive
+     */
+    public Picture crop(int col, int row, int w, int h) {
+        if (w <= 0) throw new IllegalArgumentException("width must be positive");
+        if (h <= 0) throw new IllegalArgumentException("height must be positive");
+        validateRectangle(col, row, w, h);
+        return new Picture(this, col, row, w, h);
+    }
+
+   /**
+     * Copies {@code source} into this picture with its upper left pixel at
+     * ({@code col}, {@code row}). Pixels falling outside this picture are
+     * clipped.
+     *
+     * @param source the picture to copy
+     * @param col the column index of the destination of the upper left pixel
+     * @param row the row index of the destination of the upper left pixel
+     * @throws IllegalArgumentException if {@code source} is {@code null}
+     */
+    public void copy(Picture source, int col, int row) {
+        if (source == null) throw new IllegalArgumentException("source argument is null");
+        copy(source, 0, 0, source.width, source.height, col, row);
+    }
+
+   /**
+     * Copies the {@code w}-by-{@code h} rectangle of {@code source} whose upper
+     * left pixel is ({@code sourceCol}, {@code sourceRow}) into this picture with
+     * its upper left pixel at ({@code col}, {@code row}). The rectangle is
+     * clipped against both pictures, so any part of it outside either is skipped.
+     * The source may be this picture or share pixels with it; overlapping
+     * rectangles are copied as if through an intermediate buffer.
+     *
+     * @param source the picture to copy from
+     * @param sourceCol the column index in {@code source} of the upper left pixel
+     * @param sourceRow the row index in {@code source} of the upper left pixel
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param col the column index of the destination of the upper left pixel
+     * @param row the row index of the destination of the upper left pixel
+     * @throws IllegalArgumentException if {@code source} is {@code null}
+     */
+    public void copy(Picture source, int sourceCol, int sourceRow, int w, int h, int col, int row) {
+        if (source == null) throw new IllegalArgumentException("source argument is null");
+
+        // clip against the source, then against this picture
+        int left = Math.max(Math.max(-sourceCol, -col), 0);
+        int top  = Math.max(Math.max(-sourceRow, -row), 0);
+        sourceCol += left;  col += left;  w -= left;
+        sourceRow += top;   row += top;   h -= top;
+        w = Math.min(w, Math.min(source.width  - sourceCol, width  - col));
+        h = Math.min(h, Math.min(source.height - sourceRow, height - row));
+        if (w <= 0 || h <= 0) return;
+
+        prepareWrite();
+        if (pixels == null || source.pixels == null) {
+            // off-heap rows go through a buffer, which also takes care of any
+            // overlap within a row; rows overlap only if source is this picture
+            int[] line = new int[w];
+            boolean up = source == this && row > sourceRow;
+            for (int k = 0; k < h; k++) {
+                int j = up ? h - 1 - k : k;
+                source.readRaster(sourceCol, source.rasterRow(sourceRow + j), w, line, 0);
+                writeRaster(col, rasterRow(row + j), w, line, 0);
+            }
+            return;
+        }
+        int[] from = source.pixels;
+        if (from == pixels && source.isOriginUpperLeft != isOriginUpperLeft) {
+            // rows run in opposite directions through the same array
+            from = source.getRGB(sourceCol, sourceRow, w, h, null, 0, w);
+            setRGB(col, row, w, h, from, 0, w);
+            return;
+        }
+
+        // when both rectangles live in one array and the destination comes
+        // later in memory, copy the row that comes last in memory first
+        boolean later = index(col, row) > source.index(sourceCol, sourceRow);
+        if (from != pixels || later != isOriginUpperLeft) {
+            for (int j = 0; j < h; j++)
+                System.arraycopy(from, source.index(sourceCol, sourceRow + j), pixels, index(col, row + j), w);
+        }
+        else {
+            for (int j = h - 1; j >= 0; j--)
+                System.arraycopy(from, source.index(sourceCol, sourceRow + j), pixels, index(col, row + j), w);
+        }
     }
 
    /**
@@ -389,9 +1240,7 @@ public final class Picture implements ActionListener {
         sb.append(width +"-by-" + height + " picture (RGB values given in hex)\n");
         for (int row = 0; row < height; row++) {
             for (int col = 0; col < width; col++) {
-                int rgb = 0;
-                if (isOriginUpperLeft) rgb = image.getRGB(col, row);
-                else                   rgb = image.getRGB(col, height - row - 1);
+                int rgb = getRGB(col, row) & 0xFFFFFF;
                 sb.append(String.format("#%06X ", rgb & 0xFFFFFF));
             }
             sb.append("\n");
@@ -424,6 +1273,10 @@ public final class Picture implements ActionListener {
 
    /**
      * Saves the picture to a file in a PNG or JPEG image format.
+     * PNG files are encoded on several threads by {@link PngWriter}, JPEG
+     * files by a {@link JpegWriter} with its default options. An off-heap
+     * picture is streamed to the JPEG encoder a strip of rows at a time (see
+     * {@link StreamingImage}) rather than copied to the heap first.
      *
      * @param  file the file
      * @throws IllegalArgumentException if {@code file} is {@code null}
@@ -435,7 +1288,8 @@ public final class Picture implements ActionListener {
         String suffix = filename.substring(filename.lastIndexOf('.') + 1);
         if ("jpg".equalsIgnoreCase(suffix) || "png".equalsIgnoreCase(suffix)) {
             try {
-                ImageIO.write(image, suffix, file);
+                if ("png".equalsIgnoreCase(suffix)) new PngWriter().write(this, file);
+                else new JpegWriter().write(this, file);
             }
             catch (IOException e) {
                 e.printStackTrace();
@@ -446,6 +1300,40 @@ public final class Picture implements ActionListener {
         }
     }
 
+   /**
+     * Saves the picture to a JPEG file with the given encoding options.
+     *
+     * @param name the name of the file
+     * @param options the JPEG encoding options
+     * @throws IllegalArgumentException if {@code name} or {@code options} is {@code null}
+     */
+    public void save(String name, JpegWriter options) {
+        if (name == null) throw new IllegalArgumentException("argument to save() is null");
+        save(new File(name), options);
+        filename = name;
+    }
+
+   /**
+     * Saves the picture to a JPEG file with the given encoding options,
+     * whatever the extension of its name.
+     *
+     * @param file the file
+     * @param options the JPEG encoding options
+     * @throws IllegalArgumentException if {@code file} or {@code options} is {@code null}
+     */
+    public void save(File file, JpegWriter options) {
+        if (file == null) throw new IllegalArgumentException("argument to save() is null");
+        if (options == null) throw new IllegalArgumentException("options argument is null");
+        filename = file.getName();
+        if (frame != null) frame.setTitle(filename);
+        try {
+            options.write(this, file);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
    /**
      * Opens a save dialog box when the user selects "Save As" from the menu.
      */
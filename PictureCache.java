@@ -0,0 +1,277 @@
+/******************************************************************************
+ *  Compilation:  javac PictureCache.java
+ *  Dependencies: Picture.java
+ *
+ *  A bounded, thread-safe cache of decoded pictures.
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ *  This class caches decoded image files so that loading the same file again,
+ *  for example to fill many tiles of a collage with it, skips the decoder.
+ *  <p>
+ *  Entries are keyed by the canonical path of the file, its last-modified time
+ *  and the target size it was decoded for (see {@link Picture#load(String, int, int)}),
+ *  so editing a file on disk makes the old entry unreachable. The cache holds at
+ *  most {@link #maxBytes()} bytes of pixels, counting 4 bytes per pixel, and
+ *  evicts the least recently used entries to stay under it.
+ *  <p>
+ *  Callers never see a cached picture itself: each {@code get} returns a
+ *  copy-on-write crop of it (see {@link Picture#crop(int, int, int, int)}),
+ *  which costs no pixel copy until it is written to and cannot change the
+ *  cached pixels when it is. Names that are not files (resources and URLs)
+ *  have no modification time to validate against and are not cached.
+ *  <p>
+ *  All methods are thread-safe. Decoding happens outside the lock, so two
+ *  threads missing on the same file at the same time may both decode it.
+ */
+public final class PictureCache {
+
+    private static final PictureCache shared = new PictureCache(256L << 20);
+
+    private final LinkedHashMap<String, Picture> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes;
+    private long hits, misses, evictions;
+
+   /**
+     * Creates an empty cache holding at most {@code maxBytes} bytes of pixels.
+     *
+     * @param maxBytes the byte budget
+     * @throws IllegalArgumentException if {@code maxBytes} is negative
+     */
+    public PictureCache(long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("byte budget must be nonnegative: " + maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+   /**
+     * Returns the cache shared by {@link Collage}, with a budget of 256 MB.
+     *
+     * @return the shared cache
+     */
+    public static PictureCache shared() {
+        return shared;
+    }
+
+   /**
+     * Returns the picture in the file {@code name}, decoded at full size.
+     *
+     * @param  name the name of the file (.png, .gif, or .jpg) or URL
+     * @return the picture
+     * @throws IllegalArgumentException if cannot read image
+     * @throws IllegalArgumentException if {@code name} is {@code null}
+     */
+    public Picture get(String name) {
+        if (name == null) throw new IllegalArgumentException("name argument is null");
+        return get(name, 0, 0);
+    }
+
+   /**
+     * Returns the picture in the file {@code name}, decoded for a
+     * {@code targetWidth}-by-{@code targetHeight} target as by
+     * {@link Picture#load(String, int, int)}. A 0-by-0 target decodes the
+     * picture at full size, as {@link #get(String)} does.
+     *
+     * @param  name the name of the file (.png, .gif, or .jpg) or URL
+     * @param  targetWidth the width the caller will scale the picture to, or 0 for full size
+     * @param  targetHeight the height the caller will scale the picture to, or 0 for full size
+     * @return the picture
+     * @throws IllegalArgumentException if cannot read image
+     * @throws IllegalArgumentException if {@code name} is {@code null}
+     * @throws IllegalArgumentException if {@code targetWidth} or {@code targetHeight} is negative,
+     *         or only one of them is 0
+     */
+    public Picture get(String name, int targetWidth, int targetHeight) {
+        if (name == null) throw new IllegalArgumentException("name argument is null");
+        if (targetWidth < 0 || targetHeight < 0 || (targetWidth == 0) != (targetHeight == 0))
+            throw new IllegalArgumentException("target size must be positive, or 0-by-0 for full size: "
+                                               + targetWidth + "-by-" + targetHeight);
+
+        String key = key(name, targetWidth, targetHeight);
+        if (key == null) return decode(name, targetWidth, targetHeight);
+
+        Picture picture;
+        synchronized (this) {
+            picture = entries.get(key);
+            if (picture != null) hits++;
+            else                 misses++;
+        }
+        if (picture == null) {
+            picture = decode(name, targetWidth, targetHeight);
+            synchronized (this) {
+                Picture raced = entries.get(key);
+                if (raced != null) picture = raced;
+                else               put(key, picture);
+            }
+        }
+        return picture.crop(0, 0, picture.width(), picture.height());
+    }
+
+   /**
+     * Starts {@link #get(String, int, int)} on {@code executor} and returns
+     * without waiting for it. A hit completes the future at once, without
+     * going through the executor. A 0-by-0 target decodes at full size.
+     *
+     * @param  name the name of the file (.png, .gif, or .jpg) or URL
+     * @param  targetWidth the width the caller will scale the picture to, or 0 for full size
+     * @param  targetHeight the height the caller will scale the picture to, or 0 for full size
+     * @param  executor the executor to decode on
+     * @return a future completed with the picture, or exceptionally with an
+     *         {@code IllegalArgumentException} if the image cannot be read
+     * @throws IllegalArgumentException if {@code name} or {@code executor} is {@code null}
+     * @throws IllegalArgumentException if {@code targetWidth} or {@code targetHeight} is negative,
+     *         or only one of them is 0
+     */
+    public CompletableFuture<Picture> getAsync(String name, int targetWidth, int targetHeight, Executor executor) {
+        if (name == null) throw new IllegalArgumentException("name argument is null");
+        if (targetWidth < 0 || targetHeight < 0 || (targetWidth == 0) != (targetHeight == 0))
+            throw new IllegalArgumentException("target size must be positive, or 0-by-0 for full size: "
+                                               + targetWidth + "-by-" + targetHeight);
+        if (executor == null) throw new IllegalArgumentException("executor argument is null");
+
+        String key = key(name, targetWidth, targetHeight);
+        if (key != null) {
+            Picture picture;
+            synchronized (this) {
+                picture = entries.get(key);
+                if (picture != null) hits++;
+            }
+            if (picture != null)
+                return CompletableFuture.completedFuture(picture.crop(0, 0, picture.width(), picture.height()));
+        }
+        return CompletableFuture.supplyAsync(() -> get(name, targetWidth, targetHeight), executor);
+    }
+
+    private static Picture decode(String name, int targetWidth, int targetHeight) {
+        if (targetWidth == 0) return new Picture(name);
+        return Picture.load(name, targetWidth, targetHeight);
+    }
+
+    // canonical path, modification time and target size, or null if name is not a file
+    private static String key(String name, int targetWidth, int targetHeight) {
+        File file = new File(name);
+        if (!file.isFile()) return null;
+        try {
+            return file.getCanonicalPath() + '|' + file.lastModified() + '|' + targetWidth + 'x' + targetHeight;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    // caller holds the lock
+    private void put(String key, Picture picture) {
+        long size = weight(picture);
+        if (size > maxBytes) return;
+        entries.put(key, picture);
+        bytes += size;
+        trim();
+    }
+
+    // evicts least recently used entries until the cache fits its budget; caller holds the lock
+    private void trim() {
+        Iterator<Map.Entry<String, Picture>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= weight(it.next().getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static long weight(Picture picture) {
+        return 4L * picture.width() * picture.height();
+    }
+
+   /**
+     * Returns the byte budget of this cache.
+     *
+     * @return the most bytes of pixels this cache holds
+     */
+    public synchronized long maxBytes() {
+        return maxBytes;
+    }
+
+   /**
+     * Changes the byte budget of this cache, evicting entries if it shrinks.
+     *
+     * @param maxBytes the new byte budget
+     * @throws IllegalArgumentException if {@code maxBytes} is negative
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("byte budget must be nonnegative: " + maxBytes);
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+   /**
+     * Returns the bytes of pixels currently cached.
+     *
+     * @return the bytes in use
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+   /**
+     * Returns the number of entries currently cached.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+   /**
+     * Returns the number of {@code get} calls answered from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+   /**
+     * Returns the number of {@code get} calls on cacheable files that had to decode.
+     *
+     * @return the miss count
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+   /**
+     * Returns the number of entries evicted to stay within the byte budget.
+     *
+     * @return the eviction count
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+   /**
+     * Removes every entry. The counters are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+   /**
+     * Returns a one-line summary of the size and counters of this cache.
+     *
+     * @return a string representation of this cache
+     */
+    public synchronized String toString() {
+        return String.format("%d entries, %d of %d bytes, %d hits, %d misses, %d evictions",
+                             entries.size(), bytes, maxBytes, hits, misses, evictions);
+    }
+}
@@ -0,0 +1,117 @@
+/******************************************************************************
+ *  Compilation:  javac PictureLoadBenchmark.java
+ *  Execution:    java PictureLoadBenchmark [runs]
+ *  Dependencies: Picture.java Resampler.java Ariel.jpeg Lilo.jpeg
+ *
+ *  Times decoding an image at full size and scaling it to a tile against
+ *  decoding it subsampled to about the tile size with Picture.load.
+ *
+ *  % java PictureLoadBenchmark
+ *  whole image   tile  full ms  decoded     load ms  decoded    speedup
+ *  Ariel.jpeg      50     47.9  1819x1536      38.0  51x52          1.3
+ *  Ariel.jpeg     150     57.0  1819x1536      33.6  152x154        1.7
+ *  Ariel.jpeg     300     78.6  1819x1536      50.8  304x308        1.5
+ *  Ariel.jpeg     600     79.1  1819x1536      49.1  607x768        1.6
+ *  Lilo.jpeg       50      9.6  480x640         6.9  54x54          1.4
+ *  Lilo.jpeg      150      9.5  480x640         7.2  160x160        1.3
+ *  Lilo.jpeg      300      8.0  480x640         8.3  480x320        1.0
+ *  Lilo.jpeg      600     10.0  480x640        10.0  480x640        1.0
+ *
+ *  middle quarter tile  full ms  decoded     load ms  decoded    speedup
+ *  Ariel.jpeg      50     46.8  909x768        23.7  51x52          2.0
+ *  Ariel.jpeg     150     56.7  909x768        28.9  152x154        2.0
+ *  Ariel.jpeg     300     64.3  909x768        29.3  303x384        2.2
+ *  Ariel.jpeg     600     52.6  909x768        39.3  909x768        1.3
+ *  Lilo.jpeg       50      9.2  240x320         5.1  60x54          1.8
+ *  Lilo.jpeg      150      9.8  240x320         5.7  240x160        1.7
+ *  Lilo.jpeg      300     10.1  240x320         6.4  240x320        1.6
+ *  Lilo.jpeg      600      8.3  240x320         6.2  240x320        1.3
+ *
+ ******************************************************************************/
+
+import java.awt.Rectangle;
+
+/**
+ *  This class measures what it costs to turn the bundled Ariel.jpeg and
+ *  Lilo.jpeg into square tiles of 50, 150, 300 and 600 pixels, two ways:
+ *  {@link Picture#Picture(String)}, which decodes every pixel, then a scale
+ *  to the tile; and {@link Picture#load(String, int, int)}, which has the
+ *  decoder skip the rows and columns the tile does not need, then the same
+ *  scale. The second table does the same for the middle quarter of each
+ *  image: a full decode cropped to the region, against
+ *  {@link Picture#load(String, Rectangle, int, int)}. The scale is the
+ *  {@link Resampler.Filter#NEAREST} one a collage uses by default.
+ *  <p>
+ *  Each time is the best of the given number of runs (default 10), after
+ *  three to warm up, and each line shows the size each path decoded.
+ */
+public final class PictureLoadBenchmark {
+
+    private static final String[] IMAGES = { "Ariel.jpeg", "Lilo.jpeg" };
+    private static final int[] TILES = { 50, 150, 300, 600 };
+    private static final int WARMUP = 3;
+
+    private PictureLoadBenchmark() { }
+
+    // one way of getting a tile-sized picture; returns the picture it decoded
+    private interface Path {
+        Picture decode(String name, int tile);
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of timed runs of each path (default 10)
+     */
+    public static void main(String[] args) {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        System.out.println("whole image   tile  full ms  decoded     load ms  decoded    speedup");
+        for (String image : IMAGES)
+            for (int tile : TILES)
+                compare(image, tile, runs,
+                        (name, size) -> new Picture(name),
+                        (name, size) -> Picture.load(name, size, size));
+
+        System.out.println();
+        System.out.println("middle quarter tile  full ms  decoded     load ms  decoded    speedup");
+        for (String image : IMAGES) {
+            Picture whole = new Picture(image);
+            int w = whole.width() / 2, h = whole.height() / 2;
+            int col = whole.width() / 4, row = whole.height() / 4;
+            for (int tile : TILES)
+                compare(image, tile, runs,
+                        (name, size) -> new Picture(name).crop(col, row, w, h),
+                        (name, size) -> Picture.load(name, new Rectangle(col, row, w, h), size, size));
+        }
+    }
+
+    // times both paths on one image and tile size and prints their line
+    private static void compare(String image, int tile, int runs, Path full, Path load) {
+        Picture[] decoded = new Picture[2];
+        double fullMillis = millis(full, image, tile, runs, decoded, 0);
+        double loadMillis = millis(load, image, tile, runs, decoded, 1);
+        System.out.printf("%-12s %5d  %7.1f  %-10s  %7.1f  %-10s  %6.1f%n", image, tile,
+                          fullMillis, size(decoded[0]), loadMillis, size(decoded[1]), fullMillis / loadMillis);
+    }
+
+    // the best milliseconds of runs calls of path, each with its scale to
+    // the tile; the last picture decoded goes to decoded[i]
+    private static double millis(Path path, String image, int tile, int runs, Picture[] decoded, int i) {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < WARMUP + runs; run++) {
+            long start = System.nanoTime();
+            Picture picture = path.decode(image, tile);
+            Picture scaled = new Picture(tile, tile);
+            Resampler.resample(picture, scaled, Resampler.Filter.NEAREST);
+            double elapsed = (System.nanoTime() - start) / 1e6;
+            if (run >= WARMUP) best = Math.min(best, elapsed);
+            decoded[i] = picture;
+        }
+        return best;
+    }
+
+    private static String size(Picture picture) {
+        return picture.width() + "x" + picture.height();
+    }
+}
@@ -0,0 +1,292 @@
+/******************************************************************************
+ *  Compilation:  javac PixelOpBenchmark.java
+ *  Execution:    java PixelOpBenchmark [millis]
+ *  Dependencies: Collage.java Picture.java
+ *
+ *  Times the table-compiled Collage.PixelOp operations against the
+ *  Color-per-pixel loops they replaced, on square tiles from 32 to 1024
+ *  pixels, and checks that both give the same pixels.
+ *
+ *  % java PixelOpBenchmark 100
+ *  operation          tile  Color ns/px  table ns/px  speedup
+ *  grayscale            32        10.20         0.91     11.2
+ *  ...
+ *  grayscale          1024        16.88         0.59     28.7
+ *  ...
+ *  sepia                32        23.64         8.37      2.8
+ *  sepia              1024        34.33         7.82      4.4
+ *  gamma                32       123.53         2.62     47.1
+ *  gamma              1024       116.29         1.57     74.3
+ *  levels             1024        48.65         2.25     21.6
+ *  posterize          1024        75.39         1.96     38.5
+ *  gamma+levels+post    32       270.03         2.11    128.0
+ *  gamma+levels+post  1024       243.03         1.89    128.6
+ *  sepia+gamma          32       130.69         9.93     13.2
+ *  sepia+gamma        1024       133.51        10.28     13.0
+ *
+ ******************************************************************************/
+
+import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *  This class measures the time per pixel of color operations on one tile
+ *  of a {@link Collage}, two ways: through {@link Collage#applyToTile} with
+ *  the table-compiled {@link Collage.PixelOp}, and through the loop the
+ *  tile operations used before, which reads each pixel as a {@link Color},
+ *  computes the new components in {@code double} and sets a new
+ *  {@code Color}, column by column as the old {@code grayscaleTile} did.
+ *  The operations are grayscale, colorize, luma, sepia, gamma, levels and
+ *  posterize, a chain of gamma, levels and posterize (which {@code andThen}
+ *  folds into one table) and sepia then gamma (which it cannot fold).
+ *  <p>
+ *  Before timing, it applies each operation both ways to a tile of random
+ *  pixels and checks that the two tiles are identical. The luma and sepia
+ *  tables hold their weights in 16-bit fixed point, so the {@code double}
+ *  loops use the same weights, rounded to multiples of 1/65536; with them
+ *  every sum is exact in {@code double}.
+ *  <p>
+ *  Each operation and path is timed in a JVM of its own, started with the
+ *  same options, so the JIT's profile of one operation never slows down
+ *  another. Each time is the best of five runs of at least the given number
+ *  of milliseconds (default 200), after a warm-up run. The exit status is 1
+ *  if the two paths disagree, and 2 if a timing JVM fails.
+ */
+public final class PixelOpBenchmark {
+
+    private static final int[] SIZES = { 32, 64, 128, 256, 512, 1024 };
+    private static final int RUNS = 5;
+
+    private PixelOpBenchmark() { }
+
+    // the color loop's version of one operation, from one color to another
+    private interface ColorOp {
+        Color apply(Color color);
+    }
+
+    // the weights of the luma and sepia tables, as they hold them
+    private static final double[][] LUMA = fixed(new double[][] { { 0.299, 0.587, 0.114 } });
+    private static final double[][] SEPIA = fixed(new double[][] {
+        { 0.393, 0.769, 0.189 }, { 0.349, 0.686, 0.168 }, { 0.272, 0.534, 0.131 } });
+
+    private static final String[] NAMES = {
+        "grayscale", "colorize", "luma", "sepia", "gamma", "levels", "posterize", "gamma+levels+post", "sepia+gamma"
+    };
+
+    // the table-compiled operations, made the way callers make them
+    private static Collage.PixelOp pixelOp(int k) {
+        switch (k) {
+            case 0:  return Collage.PixelOp.grayscale();
+            case 1:  return Collage.PixelOp.colorize("red");
+            case 2:  return Collage.PixelOp.luma();
+            case 3:  return Collage.PixelOp.sepia();
+            case 4:  return Collage.PixelOp.gamma(2.2);
+            case 5:  return Collage.PixelOp.levels(16, 235, 0, 255);
+            case 6:  return Collage.PixelOp.posterize(4);
+            case 7:  return Collage.PixelOp.gamma(2.2).andThen(Collage.PixelOp.levels(16, 235, 0, 255))
+                                                      .andThen(Collage.PixelOp.posterize(4));
+            case 8:  return Collage.PixelOp.sepia().andThen(Collage.PixelOp.gamma(2.2));
+            default: throw new IllegalArgumentException("unknown operation: " + k);
+        }
+    }
+
+    // the same operations, a Color and a few doubles per pixel
+    private static ColorOp colorOp(int k) {
+        switch (k) {
+            case 0:  return c -> {
+                         int avg = (c.getRed() + c.getGreen() + c.getBlue()) / 3;
+                         return new Color(avg, avg, avg);
+                     };
+            case 1:  return c -> {
+                         int gray = (c.getRed() + c.getGreen() + c.getBlue()) / 3;
+                         return new Color(c.getRed(), gray, gray);
+                     };
+            case 2:  return c -> {
+                         int y = weighted(LUMA[0], c);
+                         return new Color(y, y, y);
+                     };
+            case 3:  return c -> new Color(weighted(SEPIA[0], c), weighted(SEPIA[1], c), weighted(SEPIA[2], c));
+            case 4:  return c -> new Color(gamma(c.getRed()), gamma(c.getGreen()), gamma(c.getBlue()));
+            case 5:  return c -> new Color(levels(c.getRed()), levels(c.getGreen()), levels(c.getBlue()));
+            case 6:  return c -> new Color(posterize(c.getRed()), posterize(c.getGreen()), posterize(c.getBlue()));
+            case 7:  return c -> new Color(posterize(levels(gamma(c.getRed()))),
+                                           posterize(levels(gamma(c.getGreen()))),
+                                           posterize(levels(gamma(c.getBlue()))));
+            case 8:  return c -> new Color(gamma(weighted(SEPIA[0], c)), gamma(weighted(SEPIA[1], c)),
+                                           gamma(weighted(SEPIA[2], c)));
+            default: throw new IllegalArgumentException("unknown operation: " + k);
+        }
+    }
+
+    // each weight rounded to a multiple of 1/65536
+    private static double[][] fixed(double[][] matrix) {
+        double[][] rounded = new double[matrix.length][3];
+        for (int i = 0; i < matrix.length; i++)
+            for (int j = 0; j < 3; j++)
+                rounded[i][j] = Math.round(matrix[i][j] * 65536) / 65536.0;
+        return rounded;
+    }
+
+    private static int weighted(double[] weights, Color c) {
+        double sum = weights[0] * c.getRed() + weights[1] * c.getGreen() + weights[2] * c.getBlue();
+        return (int) Math.min(255, Math.round(sum));
+    }
+
+    private static int gamma(int v) {
+        return (int) Math.round(255 * Math.pow(v / 255.0, 1 / 2.2));
+    }
+
+    private static int levels(int v) {
+        int clipped = Math.min(235, Math.max(16, v));
+        return (int) Math.round((clipped - 16) * 255.0 / (235 - 16));
+    }
+
+    private static int posterize(int v) {
+        return (int) Math.round(Math.round(v * 3 / 255.0) * 255.0 / 3);
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the least number of milliseconds per timed run (default 200)
+     * @throws IOException if the test image cannot be written
+     * @throws InterruptedException if interrupted while waiting for a timing JVM
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 5 && args[0].equals("--time")) {
+            time(args[1], Integer.parseInt(args[2]), args[3].equals("table"), Long.parseLong(args[4]));
+            return;
+        }
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 200;
+
+        File dir = Files.createTempDirectory("pixelop-benchmark").toFile();
+        String image = new File(dir, "noise.png").getPath();
+        try {
+            noise().save(image);
+            if (!agree(image)) {
+                System.out.println("the tables and the Color loops disagree");
+                System.exit(1);
+            }
+            System.out.println("operation          tile  Color ns/px  table ns/px  speedup");
+            for (int k = 0; k < NAMES.length; k++) {
+                double[] color = fork(image, k, "color", millis);
+                double[] table = fork(image, k, "table", millis);
+                for (int i = 0; i < SIZES.length; i++)
+                    System.out.printf("%-17s %5d  %11.2f  %11.2f  %7.1f%n", NAMES[k], SIZES[i],
+                                      color[i], table[i], color[i] / table[i]);
+            }
+        }
+        finally {
+            new File(image).delete();
+            dir.delete();
+        }
+    }
+
+    // a picture of random pixels as large as the largest tile
+    private static Picture noise() {
+        int size = SIZES[SIZES.length - 1];
+        Random random = new Random(size);
+        Picture picture = new Picture(size, size);
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                picture.setRGB(x, y, random.nextInt(1 << 24));
+        return picture;
+    }
+
+    // true if every operation gives the same pixels both ways, on every tile size
+    private static boolean agree(String image) {
+        for (int k = 0; k < NAMES.length; k++) {
+            for (int size : SIZES) {
+                try (Collage collage = new Collage(image, size, 1)) {
+                    Picture tile = new Picture(collage.getCollagePicture());
+                    applyColor(colorOp(k), tile, size);
+                    collage.applyToTile(pixelOp(k), 0, 0);
+                    Picture table = collage.getCollagePicture();
+                    for (int y = 0; y < size; y++) {
+                        for (int x = 0; x < size; x++) {
+                            if ((tile.getRGB(x, y) & 0xFFFFFF) != (table.getRGB(x, y) & 0xFFFFFF)) {
+                                System.out.println(NAMES[k] + " differs at (" + x + ", " + y + ") on a "
+                                                   + size + "-pixel tile");
+                                return false;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // the old tile loop: a Color in and a Color out per pixel, column by column
+    private static void applyColor(ColorOp op, Picture tile, int size) {
+        for (int x = 0; x < size; x++)
+            for (int y = 0; y < size; y++)
+                tile.set(x, y, op.apply(tile.get(x, y)));
+    }
+
+    // times operation k one way on every tile size in a new JVM, and returns its ns per pixel
+    private static double[] fork(String image, int k, String path, long millis)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(PixelOpBenchmark.class.getName());
+        command.add("--time");
+        command.add(image);
+        command.add(Integer.toString(k));
+        command.add(path);
+        command.add(Long.toString(millis));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        double[] nanos = new double[SIZES.length];
+        int n = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            for (String line = in.readLine(); line != null; line = in.readLine())
+                if (n < nanos.length) nanos[n++] = Double.parseDouble(line);
+        }
+        if (process.waitFor() != 0 || n != nanos.length) {
+            System.out.println("the JVM timing " + NAMES[k] + " " + path + " failed");
+            System.exit(2);
+        }
+        return nanos;
+    }
+
+    // in a forked JVM: prints the ns per pixel of operation k on each tile size, one per line
+    private static void time(String image, int k, boolean table, long millis) {
+        for (int size : SIZES) {
+            try (Collage collage = new Collage(image, size, 1)) {
+                Collage.PixelOp op = pixelOp(k);
+                ColorOp color = colorOp(k);
+                Picture tile = collage.getCollagePicture();
+                Runnable pass = table ? () -> collage.applyToTile(op, 0, 0) : () -> applyColor(color, tile, size);
+                System.out.println(nanosPerPixel(pass, size, millis));
+            }
+        }
+    }
+
+    // the best time per pixel of pass over RUNS timed runs of at least millis each
+    private static double nanosPerPixel(Runnable pass, int size, long millis) {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run <= RUNS; run++) {
+            long calls = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                pass.run();
+                calls++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < millis * 1_000_000);
+            if (run > 0) best = Math.min(best, (double) elapsed / calls / (size * size));    // run 0 warms up
+        }
+        return best;
+    }
+}
@@ -0,0 +1,398 @@
+/******************************************************************************
+ *  Compilation:  javac PngWriter.java
+ *  Dependencies: Picture.java StreamingImage.java
+ *
+ *  A PNG encoder that filters and deflates strips of rows in parallel.
+ *
+ ******************************************************************************/
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ *  This class writes pictures as 8-bit RGB PNG files, using several threads.
+ *  <p>
+ *  The rows are cut into chunks of about 256 KB, each filtered and deflated
+ *  by its own task. Every chunk but the last ends with a sync flush, which
+ *  leaves its deflate stream byte-aligned and open, so the chunks concatenate
+ *  into one valid zlib stream. To compress as well as a single stream would,
+ *  each chunk's deflater is preset with the last 32 KB of filtered data of
+ *  the chunk before it, which a decoder has in its window at that point anyway.
+ *  The Adler-32 checksums of the chunks are combined into the one for the
+ *  whole stream. At most two chunks per thread are held in memory at once, so
+ *  rows are pulled from the source as the file is written.
+ *  <p>
+ *  The output is a plain PNG that any decoder reads back bit-exactly.
+ */
+public final class PngWriter {
+
+    /**
+     *  The PNG row filters. {@code ADAPTIVE} picks, for each row, the filter
+     *  whose output has the smallest sum of absolute values, as libpng does.
+     */
+    public enum Filter { NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE }
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int CHUNK_BYTES = 1 << 18;
+    private static final int WINDOW = 1 << 15;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private Filter filter = Filter.ADAPTIVE;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+   /**
+     * Returns the deflate compression level.
+     *
+     * @return the compression level, from 0 to 9, or -1 for the default
+     */
+    public int getCompressionLevel() {
+        return level;
+    }
+
+   /**
+     * Sets the deflate compression level. Lower levels encode faster.
+     *
+     * @param level the compression level, from 0 to 9, or -1 for the default
+     * @throws IllegalArgumentException unless {@code level} is between -1 and 9
+     */
+    public void setCompressionLevel(int level) {
+        if (level < -1 || level > 9) throw new IllegalArgumentException("compression level must be between -1 and 9: " + level);
+        this.level = level;
+    }
+
+   /**
+     * Returns the row filter.
+     *
+     * @return the row filter
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+   /**
+     * Sets the row filter.
+     *
+     * @param filter the row filter
+     * @throws IllegalArgumentException if {@code filter} is {@code null}
+     */
+    public void setFilter(Filter filter) {
+        if (filter == null) throw new IllegalArgumentException("filter argument is null");
+        this.filter = filter;
+    }
+
+   /**
+     * Returns the number of threads used to encode.
+     *
+     * @return the parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+   /**
+     * Sets the number of threads used to encode; 1 encodes on the calling thread.
+     *
+     * @param parallelism the parallelism
+     * @throws IllegalArgumentException if {@code parallelism} is not positive
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+   /**
+     * Writes {@code picture} to {@code file} as a PNG.
+     *
+     * @param picture the picture
+     * @param file the file
+     * @throws IllegalArgumentException if {@code picture} or {@code file} is {@code null}
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Picture picture, File file) throws IOException {
+        if (picture == null) throw new IllegalArgumentException("picture argument is null");
+        if (file == null) throw new IllegalArgumentException("file argument is null");
+        try (OutputStream out = new FileOutputStream(file)) {
+            write(picture.width(), picture.height(), picture::getRasterRow, out);
+        }
+    }
+
+   /**
+     * Writes a {@code width}-by-{@code height} image whose rows come from
+     * {@code source} to {@code out} as a PNG. The stream is not closed.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param source the producer of rows; called from several threads at once
+     *        unless the parallelism is 1
+     * @param out the stream to write to
+     * @throws IllegalArgumentException if {@code width} or {@code height} is not positive
+     * @throws IllegalArgumentException if {@code source} or {@code out} is {@code null}
+     * @throws IOException if the stream cannot be written
+     */
+    public void write(int width, int height, StreamingImage.RowSource source, OutputStream out) throws IOException {
+        if (width  <= 0) throw new IllegalArgumentException("width must be positive");
+        if (height <= 0) throw new IllegalArgumentException("height must be positive");
+        if (source == null) throw new IllegalArgumentException("source argument is null");
+        if (out == null) throw new IllegalArgumentException("out argument is null");
+        if (3L * width + 1 > Integer.MAX_VALUE / 2) throw new IllegalArgumentException("width too large: " + width);
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        data.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream ihdr = new DataOutputStream(header);
+        ihdr.writeInt(width);
+        ihdr.writeInt(height);
+        ihdr.writeByte(8);          // bit depth
+        ihdr.writeByte(2);          // color type: RGB
+        ihdr.writeByte(0);          // compression: deflate
+        ihdr.writeByte(0);          // filter method: adaptive
+        ihdr.writeByte(0);          // no interlace
+        chunk(data, "IHDR", header.toByteArray(), 0, 13);
+
+        int rowBytes = 3 * width + 1;
+        int chunkRows = Math.max(1, CHUNK_BYTES / rowBytes);
+        int chunks = (height + chunkRows - 1) / chunkRows;
+
+        // zlib header: deflate with a 32K window, FLEVEL from the compression level, no preset dictionary
+        int flevel = level == -1 ? 2 : level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flg = flevel << 6;
+        flg += (31 - (0x78 << 8 | flg) % 31) % 31;
+        chunk(data, "IDAT", new byte[] { 0x78, (byte) flg }, 0, 2);
+
+        long adler = 1;
+        if (parallelism <= 1 || chunks == 1) {
+            for (int i = 0; i < chunks; i++) {
+                Compressed c = compress(width, height, source, i * chunkRows, Math.min(height, (i + 1) * chunkRows));
+                adler = combine(adler, c.adler, c.rawLength);
+                chunk(data, "IDAT", c.bytes, 0, c.length);
+            }
+        }
+        else {
+            ForkJoinPool pool = parallelism >= ForkJoinPool.getCommonPoolParallelism()
+                              ? ForkJoinPool.commonPool() : new ForkJoinPool(parallelism);
+            try {
+                adler = writeParallel(data, width, height, source, chunkRows, chunks, pool);
+            }
+            finally {
+                if (pool != ForkJoinPool.commonPool()) pool.shutdown();
+            }
+        }
+
+        byte[] trailer = { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler };
+        chunk(data, "IDAT", trailer, 0, 4);
+        chunk(data, "IEND", new byte[0], 0, 0);
+        data.flush();
+    }
+
+    // keeps up to two chunks per thread in flight and writes them in order
+    private long writeParallel(DataOutputStream data, int width, int height, StreamingImage.RowSource source,
+                               int chunkRows, int chunks, Executor executor) throws IOException {
+        ArrayDeque<CompletableFuture<Compressed>> inFlight = new ArrayDeque<>();
+        long adler = 1;
+        int next = 0;
+        try {
+            while (next < chunks || !inFlight.isEmpty()) {
+                while (next < chunks && inFlight.size() < 2 * parallelism) {
+                    int from = next * chunkRows;
+                    int to = Math.min(height, from + chunkRows);
+                    inFlight.add(CompletableFuture.supplyAsync(() -> compress(width, height, source, from, to), executor));
+                    next++;
+                }
+                Compressed c = inFlight.remove().join();
+                adler = combine(adler, c.adler, c.rawLength);
+                chunk(data, "IDAT", c.bytes, 0, c.length);
+            }
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+        finally {
+            for (CompletableFuture<Compressed> f : inFlight)
+                f.cancel(false);
+        }
+        return adler;
+    }
+
+    // the deflated, filtered rows from .. to-1 of the image
+    private static final class Compressed {
+        final byte[] bytes;
+        final int length;
+        final long adler;
+        final long rawLength;
+
+        Compressed(byte[] bytes, int length, long adler, long rawLength) {
+            this.bytes = bytes;
+            this.length = length;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+
+    private Compressed compress(int width, int height, StreamingImage.RowSource source, int from, int to) {
+        int rowBytes = 3 * width + 1;
+
+        // refilter enough of the rows before this chunk to rebuild the 32K
+        // dictionary the previous chunk ended with; filtering is deterministic
+        int lookback = Math.min(from, (WINDOW + rowBytes - 1) / rowBytes);
+        int first = from - lookback;
+        byte[] filtered = new byte[(to - first) * rowBytes];
+
+        int[] rgb = new int[width];
+        byte[] prev = new byte[rowBytes - 1];
+        byte[] curr = new byte[rowBytes - 1];
+        byte[][] scratch = filter == Filter.ADAPTIVE ? new byte[5][rowBytes] : null;
+        if (first > 0) {
+            source.getRow(0, first - 1, width, rgb, 0);
+            toBytes(rgb, prev);
+        }
+        for (int y = first; y < to; y++) {
+            source.getRow(0, y, width, rgb, 0);
+            toBytes(rgb, curr);
+            filterRow(curr, prev, filtered, (y - first) * rowBytes, scratch);
+            byte[] t = prev; prev = curr; curr = t;
+        }
+
+        int start = lookback * rowBytes;
+        int rawLength = filtered.length - start;
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (start > 0) {
+                int dictionary = Math.min(WINDOW, start);
+                deflater.setDictionary(filtered, start - dictionary, dictionary);
+            }
+            deflater.setInput(filtered, start, rawLength);
+            byte[] out = new byte[Math.max(1 << 12, rawLength / 2)];
+            int length = 0;
+            boolean last = to == height;
+            if (last) deflater.finish();
+            while (true) {
+                if (length == out.length) out = Arrays.copyOf(out, 2 * out.length);
+                int n = last ? deflater.deflate(out, length, out.length - length)
+                             : deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+                length += n;
+                if (last ? deflater.finished() : length < out.length) break;
+            }
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered, start, rawLength);
+            return new Compressed(out, length, checksum.getValue(), rawLength);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static void toBytes(int[] rgb, byte[] bytes) {
+        for (int i = 0, j = 0; i < rgb.length; i++, j += 3) {
+            int c = rgb[i];
+            bytes[j]     = (byte) (c >> 16);
+            bytes[j + 1] = (byte) (c >> 8);
+            bytes[j + 2] = (byte) c;
+        }
+    }
+
+    // writes the filter type byte and the filtered row at out[at]
+    private void filterRow(byte[] curr, byte[] prev, byte[] out, int at, byte[][] scratch) {
+        if (filter != Filter.ADAPTIVE) {
+            out[at] = (byte) filter.ordinal();
+            applyFilter(filter.ordinal(), curr, prev, out, at + 1);
+            return;
+        }
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type < 5; type++) {
+            applyFilter(type, curr, prev, scratch[type], 0);
+            long sum = 0;
+            for (int i = 0; i < curr.length; i++)
+                sum += Math.abs(scratch[type][i]);
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+            }
+        }
+        out[at] = (byte) best;
+        System.arraycopy(scratch[best], 0, out, at + 1, curr.length);
+    }
+
+    private static void applyFilter(int type, byte[] curr, byte[] prev, byte[] out, int at) {
+        int n = curr.length;
+        switch (type) {
+            case 0:
+                System.arraycopy(curr, 0, out, at, n);
+                break;
+            case 1:
+                for (int i = 0; i < n; i++)
+                    out[at + i] = (byte) (curr[i] - (i < 3 ? 0 : curr[i - 3]));
+                break;
+            case 2:
+                for (int i = 0; i < n; i++)
+                    out[at + i] = (byte) (curr[i] - prev[i]);
+                break;
+            case 3:
+                for (int i = 0; i < n; i++) {
+                    int left = i < 3 ? 0 : curr[i - 3] & 0xFF;
+                    out[at + i] = (byte) (curr[i] - ((left + (prev[i] & 0xFF)) >> 1));
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    int a = i < 3 ? 0 : curr[i - 3] & 0xFF;
+                    int b = prev[i] & 0xFF;
+                    int c = i < 3 ? 0 : prev[i - 3] & 0xFF;
+                    out[at + i] = (byte) (curr[i] - paeth(a, b, c));
+                }
+                break;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+    // the Adler-32 of two concatenated byte sequences, from their own checksums (as zlib's adler32_combine)
+    private static long combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void chunk(DataOutputStream out, String type, byte[] bytes, int offset, int length) throws IOException {
+        byte[] name = { (byte) type.charAt(0), (byte) type.charAt(1), (byte) type.charAt(2), (byte) type.charAt(3) };
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(bytes, offset, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(bytes, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+}
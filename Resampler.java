@@ -0,0 +1,404 @@
+/******************************************************************************
+ *  Compilation:  javac Resampler.java
+ *  Dependencies: Picture.java TileKernels.java
+ *
+ *  Separable resampling of pictures with nearest-neighbour, bilinear,
+ *  bicubic, Lanczos-3 and area-averaging filters.
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+
+/**
+ *  This class scales a picture (or a rectangle of it) into a rectangle of
+ *  another picture using one of the filters in {@link Filter}.
+ *  <p>
+ *  Every filter except {@link Filter#NEAREST} is separable: each target row is
+ *  produced by a vertical pass over the source rows under the filter,
+ *  followed by a horizontal pass over that intermediate row. The taps and
+ *  fixed-point weights of each pass depend only on the filter and on the
+ *  source and target sizes, so they are computed once and shared by every
+ *  later call with the same sizes, such as all the tiles of a collage.
+ *  Expensive filters split the target rows between the threads of the common
+ *  fork-join pool, or of a pool the caller passes in, or of the pool the
+ *  calling task already runs in. When shrinking by 2 or more, they start from the closest
+ *  level of the source's mipmap pyramid (see {@link Picture#mipmap(int, int)}),
+ *  which bounds their cost by the target size rather than the source size.
+ *  <p>
+ *  Pictures are addressed in raster coordinates: row 0 is the top row,
+ *  whatever origin the picture uses. Pictures with a pixel array are read and
+ *  written in place; off-heap pictures one row at a time.
+ */
+public final class Resampler {
+
+    /**
+     * The reconstruction filters, from cheapest to most expensive.
+     */
+    public enum Filter {
+        /** Copies the source pixel the target pixel falls on; no smoothing. */
+        NEAREST(0.5),
+        /** Linear interpolation between the two nearest pixels on each axis. */
+        BILINEAR(1.0),
+        /** Cubic convolution (Keys, a = -0.5) over four pixels on each axis. */
+        BICUBIC(2.0),
+        /** Windowed sinc over six pixels on each axis; the sharpest filter. */
+        LANCZOS3(3.0),
+        /** Averages the source pixels covered by the target pixel, weighted by coverage. */
+        AREA(0.5);
+
+        private final double support;   // radius of the kernel, in source pixels
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        // value of the kernel at distance t, for filters that are a kernel
+        private double kernel(double t) {
+            t = Math.abs(t);
+            switch (this) {
+                case BILINEAR:
+                    return t < 1.0 ? 1.0 - t : 0.0;
+                case BICUBIC:
+                    if (t < 1.0) return (1.5*t - 2.5)*t*t + 1.0;
+                    if (t < 2.0) return ((-0.5*t + 2.5)*t - 4.0)*t + 2.0;
+                    return 0.0;
+                case LANCZOS3:
+                    if (t < 1e-8) return 1.0;
+                    if (t >= 3.0) return 0.0;
+                    double x = Math.PI * t;
+                    return 3.0 * Math.sin(x) * Math.sin(x / 3.0) / (x * x);
+                default:
+                    return t < 0.5 ? 1.0 : 0.0;
+            }
+        }
+    }
+
+    // weights are fixed point with this many fractional bits
+    private static final int WEIGHT_BITS = 14;
+
+    // the vertical pass keeps this many fractional bits in the intermediate row
+    private static final int ROW_BITS = 6;
+
+    // below this many target pixels times taps, the expensive filters stay on one thread
+    private static final long PARALLEL_THRESHOLD = 1 << 18;
+
+    // the weight tables are dropped when the cache grows past this many entries
+    private static final int CACHE_LIMIT = 512;
+
+    private static final Map<String, Weights> cache = new ConcurrentHashMap<>();
+
+    // the taps of one axis: target pixel i reads source pixels
+    // index[i*taps + k] with weight weight[i*taps + k], for k < taps
+    private static final class Weights {
+        private final int taps;
+        private final int[] index;
+        private final int[] weight;
+
+        private Weights(int taps, int[] index, int[] weight) {
+            this.taps = taps;
+            this.index = index;
+            this.weight = weight;
+        }
+    }
+
+    private Resampler() { }
+
+   /**
+     * Scales {@code source} to fill {@code target}.
+     *
+     * @param source the picture to scale; it is not modified
+     * @param target the picture to draw into
+     * @param filter the filter to use
+     * @throws IllegalArgumentException if any argument is {@code null}
+     */
+    public static void resample(Picture source, Picture target, Filter filter) {
+        if (target == null) throw new IllegalArgumentException("target argument is null");
+        resample(source, target, 0, 0, target.width(), target.height(), filter);
+    }
+
+   /**
+     * Scales {@code source} into the {@code w}-by-{@code h} rectangle of
+     * {@code target} whose upper left pixel is ({@code col}, {@code row}).
+     * The rest of {@code target} is left unchanged.
+     *
+     * @param source the picture to scale; it is not modified
+     * @param target the picture to draw into
+     * @param col the column of the upper left pixel of the rectangle
+     * @param row the raster row of the upper left pixel of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param filter the filter to use
+     * @throws IllegalArgumentException if any argument is {@code null}
+     * @throws IllegalArgumentException unless the rectangle lies inside {@code target}
+     */
+    public static void resample(Picture source, Picture target, int col, int row, int w, int h, Filter filter) {
+        resample(source, target, col, row, w, h, filter, ForkJoinPool.commonPool());
+    }
+
+   /**
+     * Scales {@code source} into a rectangle of {@code target}, as
+     * {@link #resample(Picture, Picture, int, int, int, int, Filter)} does,
+     * splitting the rows between the threads of {@code pool}. Called from a
+     * fork-join task, it uses the pool that task runs in instead, so nested
+     * calls never start threads of their own. With a {@code null} pool, it
+     * runs on the calling thread.
+     *
+     * @param source the picture to scale; it is not modified
+     * @param target the picture to draw into
+     * @param col the column of the upper left pixel of the rectangle
+     * @param row the raster row of the upper left pixel of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param filter the filter to use
+     * @param pool the pool to run in, or {@code null} for the calling thread
+     * @throws IllegalArgumentException if {@code source}, {@code target} or {@code filter} is {@code null}
+     * @throws IllegalArgumentException unless the rectangle lies inside {@code target}
+     */
+    public static void resample(Picture source, Picture target, int col, int row, int w, int h, Filter filter,
+                                ForkJoinPool pool) {
+        if (source == null) throw new IllegalArgumentException("source argument is null");
+        if (target == null) throw new IllegalArgumentException("target argument is null");
+        if (filter == null) throw new IllegalArgumentException("filter argument is null");
+        if (w <= 0 || h <= 0 || col < 0 || row < 0 || col + w > target.width() || row + h > target.height())
+            throw new IllegalArgumentException("rectangle " + w + "-by-" + h + " at (" + col + ", " + row
+                                               + ") is outside the target picture");
+        if (source == target) {
+            if (w == source.width() && h == source.height()) return;
+            source = new Picture(source);
+        }
+
+        // the kernel filters start from the pyramid level closest above the
+        // target size, so they never span more than a few source pixels
+        if (filter != Filter.NEAREST) source = source.mipmap(w, h);
+
+        // unshare the target first, in case it shares pixels with the source
+        if (target.hasPixelArray()) target.getPixelArray();
+
+        if (filter == Filter.NEAREST) {
+            nearest(source, target, col, row, w, h);
+            return;
+        }
+
+        Weights horizontal = weights(filter, source.width(), w);
+        Weights vertical = weights(filter, source.height(), h);
+        long work = (long) w * h * (horizontal.taps + vertical.taps)
+                  + (long) h * vertical.taps * source.width();
+        if (work < PARALLEL_THRESHOLD || pool == null) {
+            separable(source, target, col, row, w, horizontal, vertical, 0, h);
+            return;
+        }
+
+        // one band of rows per task, each with its own intermediate row; a
+        // parallel stream runs in the pool of the task that starts it
+        boolean nested = ForkJoinTask.inForkJoinPool();
+        Picture input = source;
+        int bands = Math.min(h, 4 * (nested ? ForkJoinTask.getPool() : pool).getParallelism());
+        Runnable scale = () -> IntStream.range(0, bands).parallel().forEach(band ->
+            separable(input, target, col, row, w, horizontal, vertical, band * h / bands, (band + 1) * h / bands));
+        if (nested || pool == ForkJoinPool.commonPool()) scale.run();
+        else                                             pool.submit(scale).join();
+    }
+
+    // the raster rows of a rectangle of a picture, accessed in place when the
+    // picture has a pixel array and through a one-row buffer when it is off-heap
+    private static final class Rows {
+        private final Picture picture;
+        private final int col, row, width;
+        private final int[] array;          // the pixel array, or null
+        private final int start, stride;    // index of the first pixel, distance between rows
+        private final int[] line;           // the buffer, if off-heap
+
+        Rows(Picture picture, int col, int row, int width, boolean writing) {
+            this.picture = picture;
+            this.col = col;
+            this.row = row;
+            this.width = width;
+            if (picture.hasPixelArray()) {
+                array = writing ? picture.getPixelArray() : picture.getSharedPixelArray();
+                stride = picture.getScanlineStride();
+                start = picture.getPixelOffset() + row * stride + col;
+                line = null;
+            } else {
+                array = null;
+                stride = 0;
+                start = 0;
+                line = new int[width];
+            }
+        }
+
+        // the array holding row y of the rectangle, read from off-heap if need be
+        int[] read(int y) {
+            if (array != null) return array;
+            picture.getRasterRow(col, row + y, width, line, 0);
+            return line;
+        }
+
+        // the array to write row y of the rectangle into; call flush(y) after
+        int[] write(int y) {
+            return array != null ? array : line;
+        }
+
+        // the index of the first pixel of row y in the array returned for it
+        int base(int y) {
+            return array != null ? start + y * stride : 0;
+        }
+
+        void flush(int y) {
+            if (array == null) picture.setRasterRow(col, row + y, width, line, 0);
+        }
+    }
+
+    // point sampling with integer index tables; exact for any size ratio
+    private static void nearest(Picture source, Picture target, int col, int row, int w, int h) {
+        int sourceWidth = source.width();
+        int sourceHeight = source.height();
+        int[] columns = new int[w];
+        for (int x = 0; x < w; x++) {
+            columns[x] = (int) ((long) x * sourceWidth / w);
+        }
+
+        Rows from = new Rows(source, 0, 0, sourceWidth, false);
+        Rows to = new Rows(target, col, row, w, true);
+        for (int y = 0; y < h; y++) {
+            int sy = (int) ((long) y * sourceHeight / h);
+            int[] in = from.read(sy);
+            int[] out = to.write(y);
+            int sourceRow = from.base(sy);
+            int targetRow = to.base(y);
+            for (int x = 0; x < w; x++) {
+                out[targetRow + x] = in[sourceRow + columns[x]];
+            }
+            to.flush(y);
+        }
+    }
+
+    // target rows [rowLo, rowHi): vertical pass into one intermediate row, then horizontal pass
+    private static void separable(Picture source, Picture target, int col, int row, int w,
+                                  Weights horizontal, Weights vertical, int rowLo, int rowHi) {
+        int sourceWidth = source.width();
+        Rows from = new Rows(source, 0, 0, sourceWidth, false);
+        Rows to = new Rows(target, col, row, w, true);
+        int[] red   = new int[sourceWidth];
+        int[] green = new int[sourceWidth];
+        int[] blue  = new int[sourceWidth];
+        int round = 1 << (WEIGHT_BITS - ROW_BITS - 1);
+        int shift = WEIGHT_BITS + ROW_BITS;
+
+        for (int y = rowLo; y < rowHi; y++) {
+            Arrays.fill(red, 0);
+            Arrays.fill(green, 0);
+            Arrays.fill(blue, 0);
+            for (int k = y * vertical.taps, end = k + vertical.taps; k < end; k++) {
+                int wy = vertical.weight[k];
+                if (wy == 0) continue;
+                int[] in = from.read(vertical.index[k]);
+                TileKernels.accumulate(in, from.base(vertical.index[k]), sourceWidth, wy, red, green, blue);
+            }
+            for (int x = 0; x < sourceWidth; x++) {
+                red[x]   = (red[x]   + round) >> (WEIGHT_BITS - ROW_BITS);
+                green[x] = (green[x] + round) >> (WEIGHT_BITS - ROW_BITS);
+                blue[x]  = (blue[x]  + round) >> (WEIGHT_BITS - ROW_BITS);
+            }
+
+            int[] out = to.write(y);
+            int targetRow = to.base(y);
+            for (int x = 0; x < w; x++) {
+                int r = 0, g = 0, b = 0;
+                for (int k = x * horizontal.taps, end = k + horizontal.taps; k < end; k++) {
+                    int i = horizontal.index[k];
+                    int wx = horizontal.weight[k];
+                    r += red[i]   * wx;
+                    g += green[i] * wx;
+                    b += blue[i]  * wx;
+                }
+                r = clamp((r + (1 << (shift - 1))) >> shift);
+                g = clamp((g + (1 << (shift - 1))) >> shift);
+                b = clamp((b + (1 << (shift - 1))) >> shift);
+                out[targetRow + x] = (r << 16) | (g << 8) | b;
+            }
+            to.flush(y);
+        }
+    }
+
+    private static int clamp(int c) {
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+
+    // the weight table for scaling sourceSize pixels to targetSize pixels, built on first use
+    private static Weights weights(Filter filter, int sourceSize, int targetSize) {
+        String key = filter + ":" + sourceSize + ":" + targetSize;
+        Weights weights = cache.get(key);
+        if (weights == null) {
+            if (cache.size() >= CACHE_LIMIT) cache.clear();
+            weights = filter == Filter.AREA ? areaWeights(sourceSize, targetSize)
+                                            : kernelWeights(filter, sourceSize, targetSize);
+            cache.put(key, weights);
+        }
+        return weights;
+    }
+
+    // samples the kernel centered on each target pixel, stretched when shrinking
+    private static Weights kernelWeights(Filter filter, int sourceSize, int targetSize) {
+        double scale = (double) sourceSize / targetSize;   // source pixels per target pixel
+        double stretch = Math.max(scale, 1.0);
+        double support = filter.support * stretch;
+        int taps = (int) Math.ceil(2 * support) + 1;
+        int[] index = new int[targetSize * taps];
+        double[] raw = new double[targetSize * taps];
+
+        for (int i = 0; i < targetSize; i++) {
+            double center = (i + 0.5) * scale - 0.5;
+            int first = (int) Math.ceil(center - support);
+            for (int k = 0; k < taps; k++) {
+                int s = first + k;
+                index[i*taps + k] = Math.min(Math.max(s, 0), sourceSize - 1);   // replicate edges
+                raw[i*taps + k] = filter.kernel((s - center) / stretch);
+            }
+        }
+        return normalize(taps, index, raw, targetSize);
+    }
+
+    // each target pixel averages the source pixels it covers, weighted by the covered length
+    private static Weights areaWeights(int sourceSize, int targetSize) {
+        double scale = (double) sourceSize / targetSize;
+        int taps = (int) Math.ceil(scale) + 1;
+        int[] index = new int[targetSize * taps];
+        double[] raw = new double[targetSize * taps];
+
+        for (int i = 0; i < targetSize; i++) {
+            double lo = i * scale;
+            double hi = Math.min((i + 1) * scale, sourceSize);
+            int first = (int) Math.floor(lo);
+            for (int k = 0; k < taps; k++) {
+                int s = Math.min(first + k, sourceSize - 1);
+                index[i*taps + k] = s;
+                raw[i*taps + k] = Math.max(0.0, Math.min(hi, first + k + 1) - Math.max(lo, first + k));
+            }
+        }
+        return normalize(taps, index, raw, targetSize);
+    }
+
+    // converts each group of taps to fixed point weights summing to exactly 1
+    private static Weights normalize(int taps, int[] index, double[] raw, int targetSize) {
+        int one = 1 << WEIGHT_BITS;
+        int[] weight = new int[raw.length];
+        for (int i = 0; i < targetSize; i++) {
+            double sum = 0.0;
+            for (int k = 0; k < taps; k++) sum += raw[i*taps + k];
+            int total = 0;
+            int largest = i * taps;
+            for (int k = i * taps; k < (i + 1) * taps; k++) {
+                weight[k] = (int) Math.round(raw[k] / sum * one);
+                total += weight[k];
+                if (weight[k] > weight[largest]) largest = k;
+            }
+            weight[largest] += one - total;   // put the rounding error on the center tap
+        }
+        return new Weights(taps, index, weight);
+    }
+}
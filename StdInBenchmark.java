@@ -0,0 +1,207 @@
+/******************************************************************************
+ *  Compilation:  javac StdInBenchmark.java
+ *  Execution:    java StdInBenchmark [megabytes]
+ *  Dependencies: StdIn.java
+ *
+ *  Times StdIn against a Scanner set up the way StdIn used to be, on a
+ *  large generated input.
+ *
+ *  % java StdInBenchmark
+ *  input     method             values         ms  sum
+ *  ints      scanner-int        9547520       9780  -1489490979864
+ *  ints      readInt            9547520       1105  -1489490979864
+ *  ints      readAllInts        9547520        837  -1489490979864
+ *  doubles   scanner-double     8463912      31511  2.518222500634762E7
+ *  doubles   readDouble         8463912       1106  2.518222500634762E7
+ *  doubles   readAllDoubles     8463912       1130  2.518222500634762E7
+ *
+ ******************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.regex.Pattern;
+
+/**
+ *  This class writes a file of random integers and one of random decimals,
+ *  of the given size in megabytes (default 100), and reads each back from
+ *  standard input in three ways: {@link StdIn#readAllInts()} (or readAllDoubles),
+ *  {@link StdIn#readInt()} or {@link StdIn#readDouble()} in a loop, and
+ *  the same loop on a {@link Scanner} with the UTF-8 charset, US locale and
+ *  {@code \p{javaWhitespace}+} delimiter StdIn used before it read its own
+ *  buffer. Each read runs in a JVM of its own, with the file as its
+ *  standard input, since StdIn binds to standard input once.
+ *  <p>
+ *  Each line shows the time and the sum of the values read, which must be
+ *  the same for StdIn and Scanner; the exit status is 1 if they are not.
+ */
+public final class StdInBenchmark {
+
+    private static final String[] INT_MODES = { "scanner-int", "readInt", "readAllInts" };
+    private static final String[] DOUBLE_MODES = { "scanner-double", "readDouble", "readAllDoubles" };
+
+    private StdInBenchmark() { }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the size of each input in megabytes (default 100)
+     * @throws IOException if the inputs cannot be written
+     * @throws InterruptedException if interrupted while waiting for a timing JVM
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 2 && args[0].equals("--read")) {
+            read(args[1]);
+            return;
+        }
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 100;
+
+        File ints = File.createTempFile("stdin-ints", ".txt");
+        File doubles = File.createTempFile("stdin-doubles", ".txt");
+        boolean agree = true;
+        try {
+            write(ints, megabytes, false);
+            write(doubles, megabytes, true);
+            System.out.println("input     method             values         ms  sum");
+            agree &= time(ints, "ints", INT_MODES);
+            agree &= time(doubles, "doubles", DOUBLE_MODES);
+        }
+        finally {
+            ints.delete();
+            doubles.delete();
+        }
+        if (!agree) {
+            System.out.println("StdIn and Scanner read different values");
+            System.exit(1);
+        }
+    }
+
+    // fills f with about megabytes MB of random numbers, several per line
+    private static void write(File f, long megabytes, boolean decimals) throws IOException {
+        Random random = new Random(megabytes);
+        try (OutputStream file = new BufferedOutputStream(new FileOutputStream(f), 1 << 16);
+             PrintStream out = new PrintStream(file, false, "UTF-8")) {
+            long bytes = 0;
+            while (bytes < megabytes << 20) {
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < 8; i++) {
+                    if (i > 0) line.append(' ');
+                    if (decimals) line.append(String.format(Locale.US, "%.6f", (random.nextDouble() - 0.5) * 2e4));
+                    else          line.append(random.nextInt());
+                }
+                out.println(line);
+                bytes += line.length() + 1;
+            }
+        }
+    }
+
+    // runs each mode on f in a new JVM and prints its line; true if the sums agree
+    private static boolean time(File f, String input, String[] modes) throws IOException, InterruptedException {
+        String expected = null;
+        boolean agree = true;
+        for (String mode : modes) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(StdInBenchmark.class.getName());
+            command.add("--read");
+            command.add(mode);
+            Process process = new ProcessBuilder(command).redirectInput(f)
+                                                         .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            String result;
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                result = in.readLine();
+            }
+            if (process.waitFor() != 0 || result == null) {
+                System.out.println("the JVM reading " + input + " with " + mode + " failed");
+                return false;
+            }
+            String[] fields = result.split(" ");     // values, milliseconds, sum
+            System.out.printf("%-9s %-15s %10s %10s  %s%n", input, mode, fields[0], fields[1], fields[2]);
+            if (expected == null) expected = fields[0] + " " + fields[2];
+            else if (!expected.equals(fields[0] + " " + fields[2])) agree = false;
+        }
+        return agree;
+    }
+
+    // in a forked JVM: reads standard input one way and prints "values milliseconds sum"
+    private static void read(String mode) {
+        long start = System.nanoTime();
+        long count = 0;
+        long intSum = 0;
+        double doubleSum = 0;
+        boolean decimals = false;
+        switch (mode) {
+            case "scanner-int": {
+                Scanner scanner = scanner();
+                while (scanner.hasNext()) {
+                    intSum += scanner.nextInt();
+                    count++;
+                }
+                break;
+            }
+            case "scanner-double": {
+                Scanner scanner = scanner();
+                decimals = true;
+                while (scanner.hasNext()) {
+                    doubleSum += scanner.nextDouble();
+                    count++;
+                }
+                break;
+            }
+            case "readInt":
+                while (!StdIn.isEmpty()) {
+                    intSum += StdIn.readInt();
+                    count++;
+                }
+                break;
+            case "readDouble":
+                decimals = true;
+                while (!StdIn.isEmpty()) {
+                    doubleSum += StdIn.readDouble();
+                    count++;
+                }
+                break;
+            case "readAllInts":
+                for (int value : StdIn.readAllInts()) {
+                    intSum += value;
+                    count++;
+                }
+                break;
+            case "readAllDoubles":
+                decimals = true;
+                for (double value : StdIn.readAllDoubles()) {
+                    doubleSum += value;
+                    count++;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println(count + " " + millis + " " + (decimals ? Double.toString(doubleSum) : Long.toString(intSum)));
+    }
+
+    // a scanner over standard input, set up as StdIn's was
+    private static Scanner scanner() {
+        Scanner scanner = new Scanner(new BufferedInputStream(System.in), StandardCharsets.UTF_8.name());
+        scanner.useLocale(Locale.US);
+        scanner.useDelimiter(Pattern.compile("\\p{javaWhitespace}+"));
+        return scanner;
+    }
+}
@@ -0,0 +1,298 @@
+/******************************************************************************
+ *  Compilation:  javac StreamingImage.java
+ *  Dependencies: Picture.java
+ *
+ *  An image that produces its pixels a strip of rows at a time, on demand,
+ *  so that ImageIO can encode it without the whole raster in memory.
+ *
+ ******************************************************************************/
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Vector;
+import javax.imageio.ImageIO;
+
+/**
+ *  This class adapts a {@link RowSource}, anything that can produce rows of
+ *  0x00RRGGBB pixels on request, to a {@link RenderedImage} that the
+ *  ImageIO PNG and JPEG writers pull rows from as they encode.
+ *  <p>
+ *  The PNG writer asks for one row at a time, which this class answers
+ *  straight from the source. The JPEG writer asks for the whole raster up
+ *  front, so this class hands it a raster whose data buffer fills itself a
+ *  strip of {@link #getTileHeight()} rows at a time as the writer reads down
+ *  it. Either way, peak memory is one strip, not one picture: an off-heap
+ *  {@link Picture} or a collage rendered row by row can be saved with a
+ *  small heap. The rows must be requested in order for the strip to be
+ *  reused; out-of-order requests still work, at the cost of refilling it.
+ */
+public final class StreamingImage implements RenderedImage {
+
+    /**
+     *  A producer of pixel rows. {@link Picture#getRasterRow} is one.
+     */
+    public interface RowSource {
+
+        /**
+         * Writes {@code width} pixels of row {@code row}, starting at column
+         * {@code col}, to {@code rgbArray} from {@code offset} on, as 0x00RRGGBB ints.
+         *
+         * @param col the first column
+         * @param row the row
+         * @param width the number of pixels
+         * @param rgbArray the destination array
+         * @param offset the index in {@code rgbArray} of the first pixel
+         */
+        void getRow(int col, int row, int width, int[] rgbArray, int offset);
+    }
+
+    private static final ColorModel RGB = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+
+    private final int width, height, stripHeight;
+    private final RowSource source;
+
+   /**
+     * Creates an image of the given size whose rows come from {@code source}.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param stripHeight the number of rows fetched and kept at a time
+     * @param source the producer of rows
+     * @throws IllegalArgumentException if {@code width}, {@code height} or {@code stripHeight} is not positive
+     * @throws IllegalArgumentException if {@code source} is {@code null}
+     */
+    public StreamingImage(int width, int height, int stripHeight, RowSource source) {
+        if (width  <= 0) throw new IllegalArgumentException("width must be positive");
+        if (height <= 0) throw new IllegalArgumentException("height must be positive");
+        if (stripHeight <= 0) throw new IllegalArgumentException("strip height must be positive");
+        if (source == null) throw new IllegalArgumentException("source argument is null");
+        this.width = width;
+        this.height = height;
+        this.stripHeight = Math.min(stripHeight, height);
+        this.source = source;
+    }
+
+   /**
+     * Creates an image streaming the rows of {@code picture}, 64 rows at a time.
+     *
+     * @param picture the picture
+     * @throws IllegalArgumentException if {@code picture} is {@code null}
+     */
+    public StreamingImage(Picture picture) {
+        this(picture, 64);
+    }
+
+   /**
+     * Creates an image streaming the rows of {@code picture}.
+     *
+     * @param picture the picture
+     * @param stripHeight the number of rows fetched and kept at a time
+     * @throws IllegalArgumentException if {@code picture} is {@code null}
+     * @throws IllegalArgumentException if {@code stripHeight} is not positive
+     */
+    public StreamingImage(Picture picture, int stripHeight) {
+        this(validate(picture).width(), picture.height(), stripHeight, picture::getRasterRow);
+    }
+
+    private static Picture validate(Picture picture) {
+        if (picture == null) throw new IllegalArgumentException("picture argument is null");
+        return picture;
+    }
+
+   /**
+     * Encodes this image to {@code file} in PNG or JPEG format, chosen by
+     * the .png or .jpg extension of its name.
+     *
+     * @param  file the file
+     * @throws IllegalArgumentException if {@code file} is {@code null}
+     * @throws IllegalArgumentException if the extension is not .png or .jpg
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        if (file == null) throw new IllegalArgumentException("argument to write() is null");
+        String name = file.getName();
+        String suffix = name.substring(name.lastIndexOf('.') + 1);
+        if (!"jpg".equalsIgnoreCase(suffix) && !"png".equalsIgnoreCase(suffix))
+            throw new IllegalArgumentException("filename must end in .jpg or .png: " + name);
+        if (!ImageIO.write(this, suffix, file))
+            throw new IOException("no " + suffix + " writer available");
+    }
+
+    // fills rows y .. y+h-1, columns x .. x+w-1, of a fresh raster located at (x, y)
+    private WritableRaster fill(int x, int y, int w, int h) {
+        DataBufferInt buffer = new DataBufferInt(w * h);
+        int[] data = buffer.getData();
+        for (int j = 0; j < h; j++)
+            source.getRow(x, y + j, w, data, j * w);
+        return Raster.createWritableRaster(sampleModel(w, h), buffer, new Point(x, y));
+    }
+
+    private static SampleModel sampleModel(int w, int h) {
+        return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, w, h, new int[] { 0xFF0000, 0x00FF00, 0x0000FF });
+    }
+
+    // a read-only buffer over the whole image that pulls one strip of rows at a time
+    private final class StripBuffer extends DataBuffer {
+        private final int[] strip = new int[stripHeight * width];
+        private int first = -1;        // first row of the strip, or -1 before the first fill
+        private int rows;
+
+        StripBuffer() {
+            super(DataBuffer.TYPE_INT, width * height);
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            int row = i / width;
+            if (row < first || row >= first + rows) {
+                first = row;
+                rows = Math.min(stripHeight, height - row);
+                for (int j = 0; j < rows; j++)
+                    source.getRow(0, row + j, width, strip, j * width);
+            }
+            return strip[i - first * width];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            throw new UnsupportedOperationException("streaming images are read-only");
+        }
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return RGB;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return sampleModel(width, stripHeight);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return (height + stripHeight - 1) / stripHeight;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return stripHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        if (tileX != 0 || tileY < 0 || tileY >= getNumYTiles())
+            throw new IllegalArgumentException("no tile (" + tileX + ", " + tileY + ")");
+        int y = tileY * stripHeight;
+        return fill(0, y, width, Math.min(stripHeight, height - y));
+    }
+
+   /**
+     * Returns a raster over the whole image whose pixels are fetched from the
+     * source a strip at a time as they are read. Nothing is fetched up front.
+     *
+     * @return a read-only raster of this image
+     * @throws UnsupportedOperationException if the image has more than 2<sup>31</sup> - 1 pixels
+     */
+    @Override
+    public Raster getData() {
+        if ((long) width * height > Integer.MAX_VALUE)
+            throw new UnsupportedOperationException("image too large for one raster: " + width + "-by-" + height);
+        return Raster.createRaster(sampleModel(width, height), new StripBuffer(), new Point(0, 0));
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) throw new IllegalArgumentException("rectangle is outside the image: " + rect);
+        return fill(r.x, r.y, r.width, r.height);
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) raster = Raster.createWritableRaster(sampleModel(width, height), new Point(0, 0));
+        Rectangle r = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+        for (int y = r.y; y < r.y + r.height; y += stripHeight) {
+            int h = Math.min(stripHeight, r.y + r.height - y);
+            raster.setRect(fill(r.x, y, r.width, h));
+        }
+        return raster;
+    }
+}
@@ -0,0 +1,191 @@
+/******************************************************************************
+ *  Compilation:  javac TileKernelBenchmark.java
+ *                (and vector/VectorTileKernels.java, to compare the Vector API loops)
+ *  Execution:    java --add-modules jdk.incubator.vector TileKernelBenchmark [millis]
+ *  Dependencies: TileKernels.java
+ *
+ *  Times the TileKernels loops on square tiles from 32 to 1024 pixels,
+ *  scalar against whichever loops TileKernels has loaded.
+ *
+ *  % java --add-modules jdk.incubator.vector TileKernelBenchmark
+ *  loops: vectorized
+ *  kernel        tile  scalar ns/px  loaded ns/px  speedup
+ *  grayscale       32         0.288         0.284     1.01
+ *  ...
+ *  grayscale     1024         0.234         0.318     0.74
+ *  colorize        32         0.259         0.298     0.87
+ *  ...
+ *  blend         1024         3.462         0.572     6.05
+ *  accumulate     32         4.103         0.414     9.90
+ *  ...
+ *
+ ******************************************************************************/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *  This class measures the time per pixel of each loop in {@link TileKernels}
+ *  over a whole tile, for tiles of 32, 64, 128, 256, 512 and 1024 pixels
+ *  square. Each loop runs twice: through {@link TileKernels.Scalar}, and
+ *  through {@link TileKernels} itself, which runs the Vector API loops when
+ *  the JVM has the {@code jdk.incubator.vector} module and the class
+ *  {@code VectorTileKernels} is on the class path, and the scalar loops
+ *  otherwise. Before timing, it checks that both give the same pixels.
+ *  <p>
+ *  Each loop and path is timed in a JVM of its own, started with the same
+ *  options, so the JIT's profile of one loop never slows down another.
+ *  Each time is the best of five runs of at least the given number of
+ *  milliseconds (default 200), after a warm-up run. The exit status is 1
+ *  if the two paths disagree, and 2 if a timing JVM fails.
+ */
+public final class TileKernelBenchmark {
+
+    private static final int[] SIZES = { 32, 64, 128, 256, 512, 1024 };
+    private static final int RUNS = 5;
+
+    private TileKernelBenchmark() { }
+
+    // one loop over a tile of pixels, through scalar loops or the loaded ones
+    private interface Loop {
+        void run(int[] pixels, int[] other, int[][] sums, boolean scalar);
+    }
+
+    private static final TileKernels.Scalar SCALAR = new TileKernels.Scalar();
+
+    private static final String[] NAMES = { "grayscale", "colorize", "blend", "accumulate" };
+    private static final Loop[] LOOPS = {
+        (pixels, other, sums, scalar) -> {
+            if (scalar) SCALAR.grayscale(pixels, 0, pixels.length);
+            else        TileKernels.grayscale(pixels, 0, pixels.length);
+        },
+        (pixels, other, sums, scalar) -> {
+            if (scalar) SCALAR.colorize(pixels, 0, pixels.length, 0xFF0000);
+            else        TileKernels.colorize(pixels, 0, pixels.length, 0xFF0000);
+        },
+        (pixels, other, sums, scalar) -> {
+            if (scalar) SCALAR.blend(pixels, 0, other, 0, pixels.length, 100);
+            else        TileKernels.blend(pixels, 0, other, 0, pixels.length, 100);
+        },
+        (pixels, other, sums, scalar) -> {
+            // one tap per row, over every row of the tile, as the resampler does
+            int width = sums[0].length;
+            for (int offset = 0; offset < pixels.length; offset += width) {
+                if (scalar) SCALAR.accumulate(pixels, offset, width, 3, sums[0], sums[1], sums[2]);
+                else        TileKernels.accumulate(pixels, offset, width, 3, sums[0], sums[1], sums[2]);
+            }
+        },
+    };
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the least number of milliseconds per timed run (default 200)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 4 && args[0].equals("--time")) {
+            time(Integer.parseInt(args[1]), args[2].equals("scalar"), Long.parseLong(args[3]));
+            return;
+        }
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 200;
+
+        System.out.println("loops: " + (TileKernels.isVectorized() ? "vectorized" : "scalar (no Vector API)"));
+        if (!agree()) {
+            System.out.println("the scalar and loaded loops disagree");
+            System.exit(1);
+        }
+        System.out.println("kernel        tile  scalar ns/px  loaded ns/px  speedup");
+        for (int k = 0; k < LOOPS.length; k++) {
+            double[] scalar = fork(k, "scalar", millis);
+            double[] loaded = fork(k, "loaded", millis);
+            for (int i = 0; i < SIZES.length; i++)
+                System.out.printf("%-12s %5d  %12.3f  %12.3f  %7.2f%n", NAMES[k], SIZES[i],
+                                  scalar[i], loaded[i], scalar[i] / loaded[i]);
+        }
+    }
+
+    // times loop k one way on every tile size in a new JVM, and returns its ns per pixel
+    private static double[] fork(int k, String path, long millis) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TileKernelBenchmark.class.getName());
+        command.add("--time");
+        command.add(Integer.toString(k));
+        command.add(path);
+        command.add(Long.toString(millis));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        double[] nanos = new double[SIZES.length];
+        int n = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            for (String line = in.readLine(); line != null; line = in.readLine())
+                if (n < nanos.length) nanos[n++] = Double.parseDouble(line);
+        }
+        if (process.waitFor() != 0 || n != nanos.length) {
+            System.out.println("the JVM timing " + NAMES[k] + " " + path + " failed");
+            System.exit(2);
+        }
+        return nanos;
+    }
+
+    // in a forked JVM: prints the ns per pixel of loop k on each tile size, one per line
+    private static void time(int k, boolean scalar, long millis) {
+        for (int size : SIZES)
+            System.out.println(nanosPerPixel(LOOPS[k], size, scalar, millis));
+    }
+
+    // true if every loop gives the same pixels and sums both ways, on random tiles
+    private static boolean agree() {
+        for (int k = 0; k < LOOPS.length; k++) {
+            for (int size : SIZES) {
+                int[][] scalar = tile(size), loaded = tile(size);
+                int[][] scalarSums = new int[3][size], loadedSums = new int[3][size];
+                LOOPS[k].run(scalar[0], scalar[1], scalarSums, true);
+                LOOPS[k].run(loaded[0], loaded[1], loadedSums, false);
+                if (!Arrays.equals(scalar[0], loaded[0]) || !Arrays.deepEquals(scalarSums, loadedSums)) {
+                    System.out.println(NAMES[k] + " differs on a " + size + "-pixel tile");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // two size-by-size tiles of the same random pixels each call
+    private static int[][] tile(int size) {
+        Random random = new Random(size);
+        int[][] tiles = new int[2][size * size];
+        for (int[] pixels : tiles)
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = random.nextInt(1 << 24);
+        return tiles;
+    }
+
+    // the best time per pixel of loop over RUNS timed runs of at least millis each
+    private static double nanosPerPixel(Loop loop, int size, boolean scalar, long millis) {
+        int[][] tiles = tile(size);
+        int[][] sums = new int[3][size];
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run <= RUNS; run++) {
+            long calls = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                loop.run(tiles[0], tiles[1], sums, scalar);
+                calls++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < millis * 1_000_000);
+            if (run > 0) best = Math.min(best, (double) elapsed / calls / (size * size));    // run 0 warms up
+        }
+        return best;
+    }
+}
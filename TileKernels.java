@@ -0,0 +1,157 @@
+/******************************************************************************
+ *  Compilation:  javac TileKernels.java
+ *  Dependencies: none
+ *
+ *  Per-pixel loops over packed 0x00RRGGBB int rasters, vectorized with the
+ *  incubating Vector API when it is available and scalar otherwise.
+ *
+ ******************************************************************************/
+
+/**
+ *  This class holds the inner loops that {@link Collage} and {@link Resampler}
+ *  spend their time in, each over a run of packed 0x00RRGGBB pixels.
+ *  <p>
+ *  When the JVM runs with {@code --add-modules jdk.incubator.vector} and the
+ *  class {@code VectorTileKernels} (source in {@code vector/}, compiled
+ *  separately with that flag) is on the class path, the loops run on SIMD
+ *  registers as wide as the hardware allows: 16 pixels at a time with
+ *  AVX-512. Otherwise, or with {@code -Dcollage.scalar=true}, they run the
+ *  plain loops below. Both give bit-identical results.
+ */
+public final class TileKernels {
+
+    // the loops; implemented here by Scalar and in vector/ by VectorTileKernels
+    interface Kernels {
+        void grayscale(int[] pixels, int from, int to);
+        void colorize(int[] pixels, int from, int to, int keep);
+        void blend(int[] dst, int dstOffset, int[] src, int srcOffset, int n, int alpha);
+        void accumulate(int[] src, int srcOffset, int n, int weight, int[] red, int[] green, int[] blue);
+    }
+
+    private static final Kernels KERNELS = load();
+
+    private TileKernels() { }
+
+    private static Kernels load() {
+        if (Boolean.getBoolean("collage.scalar")) return new Scalar();
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) return new Scalar();
+        try {
+            return (Kernels) Class.forName("VectorTileKernels").getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return new Scalar();
+        }
+    }
+
+   /**
+     * Returns true if the loops run on the Vector API.
+     *
+     * @return {@code true} if vectorized, {@code false} if scalar
+     */
+    public static boolean isVectorized() {
+        return !(KERNELS instanceof Scalar);
+    }
+
+   /**
+     * Sets each of {@code pixels[from]} to {@code pixels[to - 1]} to the gray
+     * whose level is the average of its three components, rounded down.
+     *
+     * @param pixels the pixels
+     * @param from the first index
+     * @param to one past the last index
+     */
+    public static void grayscale(int[] pixels, int from, int to) {
+        KERNELS.grayscale(pixels, from, to);
+    }
+
+   /**
+     * Keeps the component bits {@code keep} (0xFF0000, 0x00FF00 or 0x0000FF)
+     * of each of {@code pixels[from]} to {@code pixels[to - 1]} and sets the
+     * other two components to the average of the three, rounded down.
+     *
+     * @param pixels the pixels
+     * @param from the first index
+     * @param to one past the last index
+     * @param keep the mask of the component to keep
+     */
+    public static void colorize(int[] pixels, int from, int to, int keep) {
+        KERNELS.colorize(pixels, from, to, keep);
+    }
+
+   /**
+     * Blends {@code n} pixels of {@code src} over those of {@code dst}:
+     * each component becomes (src &middot; alpha + dst &middot; (256 - alpha)) / 256,
+     * rounded down.
+     *
+     * @param dst the pixels blended into
+     * @param dstOffset the index of the first pixel in {@code dst}
+     * @param src the pixels blended in
+     * @param srcOffset the index of the first pixel in {@code src}
+     * @param n the number of pixels
+     * @param alpha the weight of {@code src}, from 0 to 256
+     * @throws IllegalArgumentException unless {@code alpha} is between 0 and 256
+     */
+    public static void blend(int[] dst, int dstOffset, int[] src, int srcOffset, int n, int alpha) {
+        if (alpha < 0 || alpha > 256) throw new IllegalArgumentException("alpha must be between 0 and 256: " + alpha);
+        KERNELS.blend(dst, dstOffset, src, srcOffset, n, alpha);
+    }
+
+   /**
+     * Adds {@code weight} times each component of {@code src[srcOffset + x]}
+     * to {@code red[x]}, {@code green[x]} and {@code blue[x]}, for {@code x}
+     * from 0 to {@code n - 1}: one tap of a resampling filter applied along a row.
+     *
+     * @param src the pixels
+     * @param srcOffset the index of the first pixel in {@code src}
+     * @param n the number of pixels
+     * @param weight the filter weight
+     * @param red the red sums
+     * @param green the green sums
+     * @param blue the blue sums
+     */
+    public static void accumulate(int[] src, int srcOffset, int n, int weight, int[] red, int[] green, int[] blue) {
+        KERNELS.accumulate(src, srcOffset, n, weight, red, green, blue);
+    }
+
+    // the average (r + g + b) / 3 of the components of rgb; sum * 21846 >> 16 is exact for sum <= 765
+    static int average(int rgb) {
+        return ((((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF)) * 21846) >> 16;
+    }
+
+    static final class Scalar implements Kernels {
+
+        public void grayscale(int[] pixels, int from, int to) {
+            for (int i = from; i < to; i++)
+                pixels[i] = average(pixels[i]) * 0x010101;
+        }
+
+        public void colorize(int[] pixels, int from, int to, int keep) {
+            int spread = 0x010101 & ~keep;
+            for (int i = from; i < to; i++) {
+                int rgb = pixels[i];
+                pixels[i] = (rgb & keep) | average(rgb) * spread;
+            }
+        }
+
+        public void blend(int[] dst, int dstOffset, int[] src, int srcOffset, int n, int alpha) {
+            int beta = 256 - alpha;
+            for (int i = 0; i < n; i++) {
+                int s = src[srcOffset + i];
+                int d = dst[dstOffset + i];
+                int r = (((s >> 16) & 0xFF) * alpha + ((d >> 16) & 0xFF) * beta) >> 8;
+                int g = (((s >>  8) & 0xFF) * alpha + ((d >>  8) & 0xFF) * beta) >> 8;
+                int b = (( s        & 0xFF) * alpha + ( d        & 0xFF) * beta) >> 8;
+                dst[dstOffset + i] = (r << 16) | (g << 8) | b;
+            }
+        }
+
+        public void accumulate(int[] src, int srcOffset, int n, int weight, int[] red, int[] green, int[] blue) {
+            for (int x = 0; x < n; x++) {
+                int rgb = src[srcOffset + x];
+                red[x]   += ((rgb >> 16) & 0xFF) * weight;
+                green[x] += ((rgb >>  8) & 0xFF) * weight;
+                blue[x]  += ( rgb        & 0xFF) * weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,511 @@
+/******************************************************************************
+ *  Compilation:  javac TiledRaster.java
+ *  Dependencies: Picture.java
+ *
+ *  A file of fixed-size tiles of RGB pixels, any one of which can be read
+ *  or rewritten in place without touching the others.
+ *
+ ******************************************************************************/
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  This class reads and writes the tiled raster format, meant for pictures
+ *  too large to encode or decode in one go.
+ *  <p>
+ *  The picture is cut into <em>T</em>-by-<em>T</em> tiles, numbered row by
+ *  row from the upper left. The file holds, all big-endian:
+ *  <ul>
+ *  <li>a 32-byte header: the magic number {@code "ARTT"}, the format version,
+ *      the width, height and tile size <em>T</em>, a flags word (bit 0 set if
+ *      tiles are compressed) and two reserved words;
+ *  <li>a tile index of one {@code int} per tile: 0 if the tile has never been
+ *      written (it is black), 4<em>T</em><sup>2</sup> if it is stored raw,
+ *      or else the length of its deflate stream;
+ *  <li>one slot of 4<em>T</em><sup>2</sup> bytes per tile, holding its pixels
+ *      as 0x00RRGGBB ints row by row (tiles on the right and bottom edges use
+ *      only the upper left part of their slot), or their deflate stream.
+ *  </ul>
+ *  Every slot has the same size whether or not its tile compresses, so a tile
+ *  can always be rewritten in place. Compression saves disk reads and writes,
+ *  not file size; a tile that deflates to a full slot or more is stored raw.
+ *  <p>
+ *  The index is mapped into memory when the file is opened; tiles are read
+ *  and written with positional {@link FileChannel} reads and writes through
+ *  buffers each thread reuses, so the memory used is a couple of tiles per
+ *  thread whatever the size of the picture. Different tiles may be read and
+ *  written by different threads at once.
+ */
+public final class TiledRaster implements AutoCloseable {
+
+    private static final int MAGIC = 0x41525454;   // "ARTT"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int COMPRESSED = 1;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer index;      // one int per tile
+    private final int width, height, tileSize;
+    private final int tilesAcross, tilesDown;
+    private final boolean compressed;
+    private final int slotBytes;
+    private final long dataStart;
+
+    // a slot's worth of bytes read from or written to the file, and the raw
+    // pixels a deflate stream is expanded into or compressed from
+    private final ThreadLocal<ByteBuffer> slotBuffer;
+    private final ThreadLocal<byte[]> rawBuffer;
+
+    private TiledRaster(RandomAccessFile file, int width, int height, int tileSize, boolean compressed)
+            throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.compressed = compressed;
+        this.tilesAcross = (width + tileSize - 1) / tileSize;
+        this.tilesDown = (height + tileSize - 1) / tileSize;
+        this.slotBytes = 4 * tileSize * tileSize;
+        this.dataStart = HEADER_BYTES + 4L * tilesAcross * tilesDown;
+        this.slotBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(slotBytes));
+        this.rawBuffer = ThreadLocal.withInitial(() -> new byte[slotBytes]);
+        this.index = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES, 4L * tilesAcross * tilesDown);
+    }
+
+   /**
+     * Creates a tiled raster file for a {@code width}-by-{@code height}
+     * picture, replacing any existing file. Every tile starts out black.
+     *
+     * @param  f the file to create
+     * @param  width the width of the picture
+     * @param  height the height of the picture
+     * @param  tileSize the width and height of a tile
+     * @param  compressed whether to deflate each tile
+     * @return the open raster
+     * @throws IllegalArgumentException if {@code f} is {@code null}
+     * @throws IllegalArgumentException if {@code width}, {@code height} or {@code tileSize} is not positive
+     * @throws IllegalArgumentException if a tile would not fit in 2 GB
+     * @throws IllegalArgumentException if the file cannot be created
+     */
+    public static TiledRaster create(File f, int width, int height, int tileSize, boolean compressed) {
+        if (f == null) throw new IllegalArgumentException("file argument is null");
+        if (width  <= 0) throw new IllegalArgumentException("width must be positive");
+        if (height <= 0) throw new IllegalArgumentException("height must be positive");
+        if (tileSize <= 0 || 4L * tileSize * tileSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("tile size must be between 1 and 23170: " + tileSize);
+        long tiles = (long) ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+        if (4 * tiles > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many tiles: " + tiles);
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(f, "rw");
+            file.setLength(0);
+            file.setLength(fileLength(tiles, tileSize));
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(tileSize)
+                  .putInt(compressed ? COMPRESSED : 0).putInt(0).putInt(0).flip();
+            file.getChannel().write(header, 0);
+            return new TiledRaster(file, width, height, tileSize, compressed);
+        }
+        catch (IOException e) {
+            closeQuietly(file);
+            throw new IllegalArgumentException("could not create tiled raster: " + f, e);
+        }
+    }
+
+   /**
+     * Opens an existing tiled raster file for reading and writing.
+     *
+     * @param  f the file
+     * @return the open raster
+     * @throws IllegalArgumentException if {@code f} is {@code null}
+     * @throws IllegalArgumentException if {@code f} cannot be opened or is not a tiled raster
+     * @throws IllegalArgumentException if {@code f} is shorter than its header says
+     */
+    public static TiledRaster open(File f) {
+        if (f == null) throw new IllegalArgumentException("file argument is null");
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(f, "rw");
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && file.getChannel().read(header, header.position()) > 0) { }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC)
+                throw new IllegalArgumentException("not a tiled raster: " + f);
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IllegalArgumentException("unsupported tiled raster version " + version + ": " + f);
+            int width = header.getInt();
+            int height = header.getInt();
+            int tileSize = header.getInt();
+            int flags = header.getInt();
+            if (width <= 0 || height <= 0 || tileSize <= 0 || 4L * tileSize * tileSize > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("corrupt tiled raster header: " + f);
+            long tiles = (long) ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+            if (4 * tiles > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("corrupt tiled raster header: " + f);
+            long expected = fileLength(tiles, tileSize);
+            if (file.length() < expected)
+                throw new IllegalArgumentException("truncated tiled raster: " + f + " is " + file.length()
+                                                   + " bytes, its header needs " + expected);
+            return new TiledRaster(file, width, height, tileSize, (flags & COMPRESSED) != 0);
+        }
+        catch (IOException e) {
+            closeQuietly(file);
+            throw new IllegalArgumentException("could not open tiled raster: " + f, e);
+        }
+        catch (RuntimeException e) {
+            closeQuietly(file);
+            throw e;
+        }
+    }
+
+    // the header, the index and a slot for every tile
+    private static long fileLength(long tiles, int tileSize) {
+        return HEADER_BYTES + 4 * tiles + 4L * tileSize * tileSize * tiles;
+    }
+
+   /**
+     * Writes {@code picture} to a new tiled raster file.
+     *
+     * @param picture the picture to save
+     * @param f the file to create
+     * @param tileSize the width and height of a tile
+     * @param compressed whether to deflate each tile
+     * @throws IllegalArgumentException if any argument is invalid, as for {@link #create}
+     */
+    public static void save(Picture picture, File f, int tileSize, boolean compressed) {
+        if (picture == null) throw new IllegalArgumentException("picture argument is null");
+        try (TiledRaster raster = create(f, picture.width(), picture.height(), tileSize, compressed)) {
+            raster.write(picture);
+        }
+    }
+
+    /**
+     * Returns the width of the picture.
+     *
+     * @return the width of the picture (in pixels)
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the picture.
+     *
+     * @return the height of the picture (in pixels)
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Returns the width and height of a tile.
+     *
+     * @return the tile size (in pixels)
+     */
+    public int tileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the number of columns of tiles.
+     *
+     * @return the number of tiles across
+     */
+    public int tilesAcross() {
+        return tilesAcross;
+    }
+
+    /**
+     * Returns the number of rows of tiles.
+     *
+     * @return the number of tiles down
+     */
+    public int tilesDown() {
+        return tilesDown;
+    }
+
+    /**
+     * Returns true if the tiles of this raster are deflated.
+     *
+     * @return {@code true} if tiles are compressed
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    private void validateTile(int tileCol, int tileRow) {
+        if (tileCol < 0 || tileCol >= tilesAcross)
+            throw new IllegalArgumentException("tile column must be between 0 and " + (tilesAcross - 1) + ": " + tileCol);
+        if (tileRow < 0 || tileRow >= tilesDown)
+            throw new IllegalArgumentException("tile row must be between 0 and " + (tilesDown - 1) + ": " + tileRow);
+    }
+
+   /**
+     * Reads tile ({@code tileCol}, {@code tileRow}) into {@code rgbArray}, as
+     * <em>T</em> rows of <em>T</em> pixels. For tiles on the right or bottom
+     * edge, the pixels outside the picture are black.
+     *
+     * @param tileCol the tile column
+     * @param tileRow the tile row
+     * @param rgbArray the array to fill, or {@code null} to allocate one of <em>T</em><sup>2</sup> elements
+     * @return {@code rgbArray}
+     * @throws IllegalArgumentException unless the tile exists
+     * @throws IllegalArgumentException if {@code rgbArray} is shorter than <em>T</em><sup>2</sup>
+     * @throws IllegalArgumentException if the file cannot be read or the tile is corrupt
+     */
+    public int[] readTile(int tileCol, int tileRow, int[] rgbArray) {
+        validateTile(tileCol, tileRow);
+        int pixels = tileSize * tileSize;
+        if (rgbArray == null) rgbArray = new int[pixels];
+        if (rgbArray.length < pixels)
+            throw new IllegalArgumentException("rgbArray must hold " + pixels + " pixels: " + rgbArray.length);
+
+        int tile = tileRow * tilesAcross + tileCol;
+        int length = index.getInt(4 * tile);
+        if (length < 0 || length > slotBytes)
+            throw new IllegalArgumentException("corrupt index entry " + length + " for tile (" + tileCol + ", " + tileRow + ")");
+        if (length == 0) {
+            java.util.Arrays.fill(rgbArray, 0, pixels, 0);
+            return rgbArray;
+        }
+        try {
+            ByteBuffer slot = slotBuffer.get();
+            slot.clear().limit(length);
+            readFully(slot, dataStart + (long) tile * slotBytes);
+            slot.flip();
+            if (length == slotBytes) {
+                slot.asIntBuffer().get(rgbArray, 0, pixels);
+                return rgbArray;
+            }
+            byte[] raw = rawBuffer.get();
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(slot.array(), 0, length);
+                if (inflater.inflate(raw) != slotBytes)
+                    throw new IllegalArgumentException("corrupt tile (" + tileCol + ", " + tileRow + ")");
+            }
+            finally {
+                inflater.end();
+            }
+            ByteBuffer.wrap(raw).asIntBuffer().get(rgbArray, 0, pixels);
+            return rgbArray;
+        }
+        catch (IOException | DataFormatException e) {
+            throw new IllegalArgumentException("could not read tile (" + tileCol + ", " + tileRow + ")", e);
+        }
+    }
+
+   /**
+     * Rewrites tile ({@code tileCol}, {@code tileRow}) in place from
+     * {@code rgbArray}, laid out as by {@link #readTile(int, int, int[])}.
+     * Only the least significant 24 bits of each element are stored.
+     *
+     * @param tileCol the tile column
+     * @param tileRow the tile row
+     * @param rgbArray the <em>T</em><sup>2</sup> pixels of the tile
+     * @throws IllegalArgumentException unless the tile exists
+     * @throws IllegalArgumentException if {@code rgbArray} is {@code null} or shorter than <em>T</em><sup>2</sup>
+     * @throws IllegalArgumentException if the file cannot be written
+     */
+    public void writeTile(int tileCol, int tileRow, int[] rgbArray) {
+        validateTile(tileCol, tileRow);
+        int pixels = tileSize * tileSize;
+        if (rgbArray == null) throw new IllegalArgumentException("rgbArray argument is null");
+        if (rgbArray.length < pixels)
+            throw new IllegalArgumentException("rgbArray must hold " + pixels + " pixels: " + rgbArray.length);
+
+        int tile = tileRow * tilesAcross + tileCol;
+        try {
+            ByteBuffer slot = slotBuffer.get();
+            slot.clear();
+            int length = slotBytes;
+            if (compressed) {
+                byte[] raw = rawBuffer.get();
+                IntBuffer ints = ByteBuffer.wrap(raw).asIntBuffer();
+                for (int i = 0; i < pixels; i++)
+                    ints.put(i, rgbArray[i] & 0xFFFFFF);
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                    deflater.setInput(raw);
+                    deflater.finish();
+                    int n = deflater.deflate(slot.array());
+                    if (deflater.finished() && n < slotBytes) length = n;
+                    else slot.put(raw);
+                }
+                finally {
+                    deflater.end();
+                }
+            }
+            else {
+                IntBuffer ints = slot.asIntBuffer();
+                for (int i = 0; i < pixels; i++)
+                    ints.put(i, rgbArray[i] & 0xFFFFFF);
+            }
+            slot.clear().limit(length);
+            writeFully(slot, dataStart + (long) tile * slotBytes);
+            index.putInt(4 * tile, length);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("could not write tile (" + tileCol + ", " + tileRow + ")", e);
+        }
+    }
+
+    // positional reads and writes leave the channel's own position alone,
+    // so threads working on different tiles do not get in each other's way
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0)
+                throw new EOFException("tiled raster ends at " + (start + buffer.position()));
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining())
+            channel.write(buffer, start + buffer.position());
+    }
+
+   /**
+     * Writes the tile ({@code tileCol}, {@code tileRow}) of {@code picture},
+     * which must have the dimensions of this raster.
+     *
+     * @param picture the picture to copy the tile from
+     * @param tileCol the tile column
+     * @param tileRow the tile row
+     * @throws IllegalArgumentException if {@code picture} is {@code null} or of another size
+     * @throws IllegalArgumentException unless the tile exists
+     */
+    public void writeTile(Picture picture, int tileCol, int tileRow) {
+        validatePicture(picture);
+        validateTile(tileCol, tileRow);
+        int[] tile = new int[tileSize * tileSize];
+        int x = tileCol * tileSize;
+        int y = tileRow * tileSize;
+        int w = Math.min(tileSize, width - x);
+        int h = Math.min(tileSize, height - y);
+        for (int j = 0; j < h; j++)
+            picture.getRasterRow(x, y + j, w, tile, j * tileSize);
+        writeTile(tileCol, tileRow, tile);
+    }
+
+   /**
+     * Writes every tile of {@code picture}, which must have the dimensions of this raster.
+     *
+     * @param picture the picture to write
+     * @throws IllegalArgumentException if {@code picture} is {@code null} or of another size
+     */
+    public void write(Picture picture) {
+        validatePicture(picture);
+        for (int tileRow = 0; tileRow < tilesDown; tileRow++)
+            for (int tileCol = 0; tileCol < tilesAcross; tileCol++)
+                writeTile(picture, tileCol, tileRow);
+    }
+
+   /**
+     * Reads tile ({@code tileCol}, {@code tileRow}) as a picture, clipped to
+     * the part that lies inside the picture.
+     *
+     * @param tileCol the tile column
+     * @param tileRow the tile row
+     * @return the tile
+     * @throws IllegalArgumentException unless the tile exists
+     */
+    public Picture readTile(int tileCol, int tileRow) {
+        int[] tile = readTile(tileCol, tileRow, null);
+        int w = Math.min(tileSize, width - tileCol * tileSize);
+        int h = Math.min(tileSize, height - tileRow * tileSize);
+        Picture picture = new Picture(w, h);
+        picture.setRGB(0, 0, w, h, tile, 0, tileSize);
+        return picture;
+    }
+
+   /**
+     * Reads the whole picture into the given storage. With
+     * {@link Picture.Storage#OFF_HEAP}, the heap holds only one tile at a time.
+     *
+     * @param storage where the picture keeps its pixels
+     * @return the picture
+     * @throws IllegalArgumentException if {@code storage} is {@code null}
+     */
+    public Picture read(Picture.Storage storage) {
+        Picture picture = new Picture(width, height, storage);
+        int[] tile = new int[tileSize * tileSize];
+        for (int tileRow = 0; tileRow < tilesDown; tileRow++) {
+            for (int tileCol = 0; tileCol < tilesAcross; tileCol++) {
+                readTile(tileCol, tileRow, tile);
+                int x = tileCol * tileSize;
+                int y = tileRow * tileSize;
+                int w = Math.min(tileSize, width - x);
+                int h = Math.min(tileSize, height - y);
+                for (int j = 0; j < h; j++)
+                    picture.setRasterRow(x, y + j, w, tile, j * tileSize);
+            }
+        }
+        return picture;
+    }
+
+    private void validatePicture(Picture picture) {
+        if (picture == null) throw new IllegalArgumentException("picture argument is null");
+        if (picture.width() != width || picture.height() != height)
+            throw new IllegalArgumentException("picture is " + picture.width() + "-by-" + picture.height()
+                                               + ", raster is " + width + "-by-" + height);
+    }
+
+   /**
+     * Forces every change made so far out to the storage device.
+     *
+     * @throws IllegalArgumentException if the file cannot be synced
+     */
+    public void flush() {
+        try {
+            index.force();
+            channel.force(true);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("could not flush tiled raster", e);
+        }
+    }
+
+   /**
+     * Flushes and closes the file.
+     *
+     * @throws IllegalArgumentException if the file cannot be synced or closed
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        }
+        finally {
+            closeQuietly(file);
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) return;
+        try {
+            file.close();
+        }
+        catch (IOException e) {
+            // nothing more to release
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/******************************************************************************
+ *  Compilation:  javac --add-modules jdk.incubator.vector -cp .. -d .. VectorTileKernels.java
+ *                (from this directory, after compiling TileKernels.java)
+ *  Execution:    java --add-modules jdk.incubator.vector ...
+ *  Dependencies: TileKernels.java
+ *
+ *  The TileKernels loops on the incubating Vector API. Kept out of the main
+ *  directory so that plain "javac *.java" there needs no extra flags;
+ *  TileKernels loads this class by name when it is present and falls back
+ *  to its scalar loops when it is not.
+ *
+ ******************************************************************************/
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+final class VectorTileKernels implements TileKernels.Kernels {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private final TileKernels.Scalar tail = new TileKernels.Scalar();
+
+    // the average (r + g + b) / 3 of the components of each lane, as TileKernels.average
+    private static IntVector average(IntVector v) {
+        IntVector r = v.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+        IntVector g = v.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+        IntVector b = v.and(0xFF);
+        return r.add(g).add(b).mul(21846).lanewise(VectorOperators.LSHR, 16);
+    }
+
+    public void grayscale(int[] pixels, int from, int to) {
+        int i = from;
+        for (int end = from + SPECIES.loopBound(to - from); i < end; i += SPECIES.length()) {
+            average(IntVector.fromArray(SPECIES, pixels, i)).mul(0x010101).intoArray(pixels, i);
+        }
+        tail.grayscale(pixels, i, to);
+    }
+
+    public void colorize(int[] pixels, int from, int to, int keep) {
+        int spread = 0x010101 & ~keep;
+        int i = from;
+        for (int end = from + SPECIES.loopBound(to - from); i < end; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, pixels, i);
+            v.and(keep).or(average(v).mul(spread)).intoArray(pixels, i);
+        }
+        tail.colorize(pixels, i, to, keep);
+    }
+
+    public void blend(int[] dst, int dstOffset, int[] src, int srcOffset, int n, int alpha) {
+        int beta = 256 - alpha;
+        int i = 0;
+        for (int end = SPECIES.loopBound(n); i < end; i += SPECIES.length()) {
+            IntVector s = IntVector.fromArray(SPECIES, src, srcOffset + i);
+            IntVector d = IntVector.fromArray(SPECIES, dst, dstOffset + i);
+            IntVector r = mix(s, d, 16, alpha, beta);
+            IntVector g = mix(s, d, 8, alpha, beta);
+            IntVector b = mix(s, d, 0, alpha, beta);
+            r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8)).or(b)
+             .intoArray(dst, dstOffset + i);
+        }
+        tail.blend(dst, dstOffset + i, src, srcOffset + i, n - i, alpha);
+    }
+
+    // one component, at bit shift, of alpha * s + beta * d, divided by 256
+    private static IntVector mix(IntVector s, IntVector d, int shift, int alpha, int beta) {
+        IntVector cs = s.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+        IntVector cd = d.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+        return cs.mul(alpha).add(cd.mul(beta)).lanewise(VectorOperators.LSHR, 8);
+    }
+
+    public void accumulate(int[] src, int srcOffset, int n, int weight, int[] red, int[] green, int[] blue) {
+        int x = 0;
+        for (int end = SPECIES.loopBound(n); x < end; x += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, src, srcOffset + x);
+            IntVector.fromArray(SPECIES, red, x)
+                     .add(v.lanewise(VectorOperators.LSHR, 16).and(0xFF).mul(weight)).intoArray(red, x);
+            IntVector.fromArray(SPECIES, green, x)
+                     .add(v.lanewise(VectorOperators.LSHR, 8).and(0xFF).mul(weight)).intoArray(green, x);
+            IntVector.fromArray(SPECIES, blue, x)
+                     .add(v.and(0xFF).mul(weight)).intoArray(blue, x);
+        }
+        for (; x < n; x++) {
+            int rgb = src[srcOffset + x];
+            red[x]   += ((rgb >> 16) & 0xFF) * weight;
+            green[x] += ((rgb >>  8) & 0xFF) * weight;
+            blue[x]  += ( rgb        & 0xFF) * weight;
+        }
+    }
+}